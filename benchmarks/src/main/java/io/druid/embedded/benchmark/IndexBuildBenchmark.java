@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import io.druid.embedded.IndexHelper;
+import io.druid.embedded.load.impl.FastCSVLoader;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * Time to build an in-memory index, and to build, persist and reload it through IndexHelper.
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexBuildBenchmark {
+	@Param({"100000"})
+	private int rows;
+
+	@Param({"5"})
+	private int numDimensions;
+
+	@Param({"10", "10000"})
+	private int cardinality;
+
+	private SyntheticData data;
+	private String csv;
+	private File tempDir;
+
+	@Setup
+	public void setup() {
+		data = new SyntheticData(rows, numDimensions, cardinality);
+		csv = data.generateCSV();
+		tempDir = Files.createTempDir();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	private FastCSVLoader createLoader() {
+		return new FastCSVLoader(new StringReader(csv), data.getColumns(), data.getDimensions(),
+				SyntheticData.TIMESTAMP);
+	}
+
+	@Benchmark
+	public int buildIncrementalIndex() {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), data.getIndexSchema());
+		int size = index.size();
+		index.close();
+		return size;
+	}
+
+	/**
+	 * Every invocation persists into same directory of the trial, which is deleted on tear down.
+	 */
+	@Benchmark
+	public int buildAndPersist() throws IOException {
+		IncrementalIndex<?> incIndex = IndexHelper.getIncrementalIndex(createLoader(), data.getIndexSchema());
+		QueryableIndex index;
+		try {
+			index = IndexHelper.persist(incIndex, new File(tempDir, "index"));
+		} finally {
+			incIndex.close();
+		}
+		int numRows = index.getNumRows();
+		index.close();
+		return numRows;
+	}
+}
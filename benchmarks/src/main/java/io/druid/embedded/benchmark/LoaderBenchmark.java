@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import io.druid.data.input.InputRow;
+import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.embedded.load.impl.FastCSVLoader;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parse throughput of CSV loaders, rows are only read, not indexed.
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoaderBenchmark {
+	@Param({"100000"})
+	private int rows;
+
+	@Param({"5"})
+	private int numDimensions;
+
+	@Param({"10", "10000"})
+	private int cardinality;
+
+	private SyntheticData data;
+	private String csv;
+
+	@Setup
+	public void setup() {
+		data = new SyntheticData(rows, numDimensions, cardinality);
+		csv = data.generateCSV();
+	}
+
+	@Benchmark
+	public void csvLoader(Blackhole blackhole) {
+		consume(new CSVLoader(new StringReader(csv), data.getColumns(), data.getColumns(), SyntheticData.TIMESTAMP),
+				blackhole);
+	}
+
+	@Benchmark
+	public void fastCsvLoader(Blackhole blackhole) {
+		consume(new FastCSVLoader(new StringReader(csv), data.getColumns(), data.getDimensions(),
+				SyntheticData.TIMESTAMP), blackhole);
+	}
+
+	private void consume(Loader loader, Blackhole blackhole) {
+		List<String> dimensions = data.getDimensions();
+		for (InputRow row : loader) {
+			blackhole.consume(row.getTimestampFromEpoch());
+			for (String dimension : dimensions) {
+				blackhole.consume(row.getDimension(dimension));
+			}
+			blackhole.consume(row.getFloatMetric("value"));
+		}
+	}
+}
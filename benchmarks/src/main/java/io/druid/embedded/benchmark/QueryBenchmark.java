@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import io.druid.embedded.IndexHelper;
+import io.druid.embedded.QueryHelper;
+import io.druid.embedded.load.impl.FastCSVLoader;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.select.PagingSpec;
+import io.druid.query.spec.QuerySegmentSpec;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.query.topn.TopNQueryBuilder;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Interval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Latency of QueryHelper.run for every supported query type on a persisted synthetic index.
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryBenchmark {
+	@Param({"100000"})
+	private int rows;
+
+	@Param({"5"})
+	private int numDimensions;
+
+	@Param({"10", "10000"})
+	private int cardinality;
+
+	private File tempDir;
+	private QueryableIndex index;
+	private Query groupByQuery;
+	private Query topNQuery;
+	private Query timeseriesQuery;
+	private Query searchQuery;
+	private Query selectQuery;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticData data = new SyntheticData(rows, numDimensions, cardinality);
+		IncrementalIndex<?> incIndex = IndexHelper.getIncrementalIndex(new FastCSVLoader(
+				new StringReader(data.generateCSV()), data.getColumns(), data.getDimensions(), SyntheticData.TIMESTAMP),
+				data.getIndexSchema());
+		tempDir = Files.createTempDir();
+		try {
+			index = IndexHelper.persist(incIndex, tempDir);
+		} finally {
+			incIndex.close();
+		}
+
+		QuerySegmentSpec intervals = QuerySegmentSpecs.create(
+				new Interval(SyntheticData.START_MILLIS, SyntheticData.START_MILLIS + rows * 1000L));
+		QueryGranularity all = QueryGranularity.fromString("ALL");
+		groupByQuery = GroupByQuery.builder()
+				.setDataSource("test")
+				.setQuerySegmentSpec(intervals)
+				.setGranularity(all)
+				.addDimension("dim0")
+				.setAggregatorSpecs(data.getQueryAggregators())
+				.build();
+		topNQuery = new TopNQueryBuilder()
+				.dataSource("test")
+				.intervals(intervals)
+				.granularity(all)
+				.dimension("dim1")
+				.metric("agg_count")
+				.threshold(10)
+				.aggregators(data.getQueryAggregators())
+				.build();
+		timeseriesQuery = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(intervals)
+				.granularity(QueryGranularity.fromString("HOUR"))
+				.aggregators(data.getQueryAggregators())
+				.build();
+		searchQuery = Druids.newSearchQueryBuilder()
+				.dataSource("test")
+				.intervals(intervals)
+				.granularity(all)
+				.query("v1")
+				.build();
+		selectQuery = Druids.newSelectQueryBuilder()
+				.dataSource("test")
+				.intervals(intervals)
+				.granularity(all)
+				.pagingSpec(new PagingSpec(null, 1000))
+				.build();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		index.close();
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	private int run(Query query) {
+		return Sequences.toList(QueryHelper.run(query, index), new ArrayList<Object>()).size();
+	}
+
+	@Benchmark
+	public int groupBy() {
+		return run(groupByQuery);
+	}
+
+	@Benchmark
+	public int topN() {
+		return run(topNQuery);
+	}
+
+	@Benchmark
+	public int timeseries() {
+		return run(timeseriesQuery);
+	}
+
+	@Benchmark
+	public int search() {
+		return run(searchQuery);
+	}
+
+	@Benchmark
+	public int select() {
+		return run(selectQuery);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.benchmark;
+
+import io.druid.data.input.impl.DimensionSchema;
+import io.druid.data.input.impl.DimensionsSpec;
+import io.druid.data.input.impl.StringDimensionSchema;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic CSV data "TS, dim0 .. dimN, count, value", where every dimension has given cardinality.
+ * Same seed always generates same data.
+ *
+ */
+public class SyntheticData {
+	public static final String TIMESTAMP = "TS";
+	public static final long START_MILLIS = 1420070400000L;
+
+	private final int rows;
+	private final int numDimensions;
+	private final int cardinality;
+
+	public SyntheticData(int rows, int numDimensions, int cardinality) {
+		this.rows = rows;
+		this.numDimensions = numDimensions;
+		this.cardinality = cardinality;
+	}
+
+	public List<String> getDimensions() {
+		List<String> dimensions = new ArrayList<String>();
+		dimensions.add(TIMESTAMP);
+		for (int i = 0; i < numDimensions; i++) {
+			dimensions.add("dim" + i);
+		}
+		return dimensions;
+	}
+
+	public List<String> getColumns() {
+		List<String> columns = getDimensions();
+		columns.add("count");
+		columns.add("value");
+		return columns;
+	}
+
+	public String generateCSV() {
+		Random random = new Random(42);
+		StringBuilder csv = new StringBuilder(rows * (numDimensions * 8 + 32));
+		for (int row = 0; row < rows; row++) {
+			csv.append(START_MILLIS + row * 1000L);
+			for (int i = 0; i < numDimensions; i++) {
+				csv.append(",v").append(random.nextInt(cardinality));
+			}
+			csv.append(',').append(1 + random.nextInt(10));
+			csv.append(',').append(random.nextInt(100000) / 100.0);
+			csv.append('\n');
+		}
+		return csv.toString();
+	}
+
+	public IncrementalIndexSchema getIndexSchema() {
+		List<DimensionSchema> dimensions = new ArrayList<DimensionSchema>();
+		for (String dimension : getDimensions()) {
+			if (!dimension.equals(TIMESTAMP)) {
+				dimensions.add(new StringDimensionSchema(dimension));
+			}
+		}
+		return new IncrementalIndexSchema(0, QueryGranularity.fromString("NONE"),
+				new DimensionsSpec(dimensions, null, null), getAggregators());
+	}
+
+	public AggregatorFactory[] getAggregators() {
+		return new AggregatorFactory[] {
+				new LongSumAggregatorFactory("agg_count", "count"),
+				new DoubleSumAggregatorFactory("agg_sum", "value")
+		};
+	}
+
+	/**
+	 * Aggregators to use at query time over ingested metrics.
+	 */
+	public List<AggregatorFactory> getQueryAggregators() {
+		List<AggregatorFactory> aggregators = new ArrayList<AggregatorFactory>();
+		aggregators.add(new LongSumAggregatorFactory("agg_count", "agg_count"));
+		aggregators.add(new DoubleSumAggregatorFactory("agg_sum", "agg_sum"));
+		return aggregators;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.embedded.load.Loader;
+import io.druid.query.Query;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.ReferenceCountingSegment;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.guava.CloseQuietly;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import com.metamx.common.logger.Logger;
+
+/**
+ * Persisted index to which new data is appended without indexing existing data again. Rows of appended loaders
+ * are indexed into a small delta segment, which is merged with current version in background; merged version
+ * is then swapped in atomically. Queries keep running on the version they started on, which is closed once they
+ * complete (its directory is deleted right away, mapped files stay readable). Appends are applied one at a time,
+ * in submission order. Versions are written under baseDir, into new directories only : numbering goes on from
+ * directories already there (ex: left by a previous instance, or holding base index), which are never written
+ * or deleted.
+ *
+ */
+public class AppendableIndex implements Closeable {
+	private static final Logger log = new Logger(AppendableIndex.class);
+	private static final Pattern DIR_PATTERN = Pattern.compile("(?:version|delta)-(\\d{1,9})");
+
+	private final IncrementalIndexSchema schema;
+	private final IngestionConfig config;
+	private final File baseDir;
+	private final IngestionStats stats = new IngestionStats();
+	private final ListeningExecutorService mergeExecutor = MoreExecutors.listeningDecorator(
+			Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setDaemon(true)
+					.setNameFormat("embedded-druid-append-%d")
+					.build()));
+
+	private volatile ReferenceCountingSegment current;
+	private File currentDir;
+	private int version;
+	private int lastDirNumber;
+	private boolean closed;
+
+	/**
+	 * @param base : current data (ex: built by {@link IndexHelper#getQueryableIndex(List, IncrementalIndexSchema,
+	 *            IngestionConfig)}), closed by this index once it is replaced. Its directory is left as it is.
+	 * @param schema : schema base was built with, used for appended rows
+	 * @param config : ingestion settings of appended rows and format of merged versions
+	 * @param baseDir : directory of merged versions, which must not be the directory of a persisted index (ex: of
+	 *            base)
+	 */
+	public AppendableIndex(QueryableIndex base, IncrementalIndexSchema schema, IngestionConfig config, File baseDir) {
+		this.schema = Preconditions.checkNotNull(schema, "schema");
+		this.config = Preconditions.checkNotNull(config, "config");
+		this.baseDir = Preconditions.checkNotNull(baseDir, "baseDir");
+		Preconditions.checkArgument(!new File(baseDir, "version.bin").exists(),
+				"baseDir [%s] holds a persisted index, merged versions need a directory of their own", baseDir);
+		this.lastDirNumber = getLastDirNumber(baseDir);
+		this.current = new ReferenceCountingSegment(new QueryableIndexSegment("version-0", base));
+	}
+
+	/**
+	 * Highest number of version and delta directories already under baseDir.
+	 */
+	private static int getLastDirNumber(File baseDir) {
+		int last = 0;
+		String[] names = baseDir.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher matcher = DIR_PATTERN.matcher(name);
+				if (matcher.matches()) {
+					last = Math.max(last, Integer.parseInt(matcher.group(1)));
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Indexes rows of loaders and merges them with current version in background.
+	 *
+	 * @return future of new version, completing once it is swapped in
+	 */
+	public synchronized ListenableFuture<QueryableIndex> append(final List<? extends Loader> loaders) {
+		Preconditions.checkState(!closed, "index is closed");
+		Preconditions.checkArgument(!loaders.isEmpty(), "at least one loader is required");
+		return mergeExecutor.submit(new Callable<QueryableIndex>() {
+			@Override
+			public QueryableIndex call() throws Exception {
+				return merge(loaders);
+			}
+		});
+	}
+
+	public ListenableFuture<QueryableIndex> append(Loader loader) {
+		return append(Arrays.asList(loader));
+	}
+
+	/**
+	 * Runs on merge executor, one append at a time : current version can only be replaced here.
+	 */
+	private QueryableIndex merge(List<? extends Loader> loaders) throws IOException {
+		File deltaDir;
+		File versionDir;
+		do {
+			lastDirNumber++;
+			deltaDir = new File(baseDir, "delta-" + lastDirNumber);
+			versionDir = new File(baseDir, "version-" + lastDirNumber);
+		} while (deltaDir.exists() || versionDir.exists());
+		QueryableIndex merged;
+		try {
+			QueryableIndex delta = IndexHelper.getQueryableIndex(loaders, schema, config, stats, deltaDir);
+			try {
+				QueryableIndex base = current.getBaseSegment().asQueryableIndex();
+				merged = IndexHelper.mergeIndexes(Arrays.asList(base, delta), schema.getMetrics(), versionDir,
+						config.getIndexSpec());
+			} finally {
+				delta.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			// created by this merge, see above
+			FileUtils.deleteQuietly(versionDir);
+			throw e;
+		} finally {
+			FileUtils.deleteQuietly(deltaDir);
+		}
+		log.info("Merged append into [%s] : %,d rows", versionDir, merged.getNumRows());
+		swap(new ReferenceCountingSegment(new QueryableIndexSegment(versionDir.getName(), merged)), versionDir);
+		return merged;
+	}
+
+	private synchronized void swap(ReferenceCountingSegment segment, File dir) {
+		ReferenceCountingSegment previous = current;
+		File previousDir = currentDir;
+		current = segment;
+		currentDir = dir;
+		version++;
+		// closed once queries running on it complete; its mapped files stay readable after deletion
+		CloseQuietly.close(previous);
+		if (previousDir != null) {
+			FileUtils.deleteQuietly(previousDir);
+		}
+	}
+
+	/**
+	 * Runs query on current version, which can not be closed until returned Sequence is fully consumed or closed.
+	 */
+	public Sequence run(Query query) {
+		while (true) {
+			ReferenceCountingSegment segment = current;
+			Closeable reference = segment.increment();
+			if (reference != null) {
+				return Sequences.withBaggage(QueryHelper.run(query, Arrays.asList(segment)), reference);
+			}
+			// swapped and closed concurrently, use new version
+			Preconditions.checkState(segment != current, "index is closed");
+		}
+	}
+
+	/**
+	 * Current version, which gets closed once it is replaced : use {@link #run(Query)} to query it.
+	 */
+	public QueryableIndex getQueryableIndex() {
+		return current.getBaseSegment().asQueryableIndex();
+	}
+
+	/**
+	 * Number of appends applied so far.
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Row counts of all appended data.
+	 */
+	public IngestionStats getIngestionStats() {
+		return stats;
+	}
+
+	/**
+	 * Waits for pending appends and closes current version. Its directory is kept under baseDir.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		mergeExecutor.shutdown();
+		try {
+			while (!mergeExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.info("Waiting for pending appends of [%s]", baseDir);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Throwables.propagate(e);
+		}
+		current.close();
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.collections.ResourceHolder;
+import io.druid.collections.StupidPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.metamx.common.ISE;
+import com.metamx.common.guava.CloseQuietly;
+
+/**
+ * StupidPool of ByteBuffers with fixed total capacity. At most "maxBuffers" buffers of "bufferSize" bytes
+ * are handed out at any time; a buffer goes back to the pool when its ResourceHolder is closed.
+ * When pool is exhausted, take() waits up to "takeTimeoutMillis" (forever if negative, not at all if 0)
+ * and then fails.
+ *
+ */
+public class BoundedBufferPool extends StupidPool<ByteBuffer> {
+	/**
+	 * Notified of every buffer taken by the thread it is set on, see {@link BoundedBufferPool#setTakeListener}.
+	 */
+	public interface TakeListener {
+		void onTake(int bufferSize);
+	}
+
+	private final ThreadLocal<TakeListener> takeListener = new ThreadLocal<TakeListener>();
+	private final ByteBufferSupplier supplier;
+	private final int maxBuffers;
+	private final long takeTimeoutMillis;
+	private final Semaphore permits;
+	private final AtomicLong takeCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong rejectCount = new AtomicLong();
+
+	private static class ByteBufferSupplier implements Supplier<ByteBuffer> {
+		final int capacity;
+		final boolean direct;
+		final AtomicLong allocated = new AtomicLong();
+
+		ByteBufferSupplier(int capacity, boolean direct) {
+			this.capacity = capacity;
+			this.direct = direct;
+		}
+
+		public ByteBuffer get() {
+			allocated.incrementAndGet();
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+	}
+
+	public BoundedBufferPool(int bufferSize, int maxBuffers, boolean direct, long takeTimeoutMillis) {
+		this(new ByteBufferSupplier(bufferSize, direct), maxBuffers, takeTimeoutMillis);
+	}
+
+	private BoundedBufferPool(ByteBufferSupplier supplier, int maxBuffers, long takeTimeoutMillis) {
+		super(supplier);
+		Preconditions.checkArgument(supplier.capacity > 0, "bufferSize must be positive");
+		Preconditions.checkArgument(maxBuffers > 0, "maxBuffers must be positive");
+		this.supplier = supplier;
+		this.maxBuffers = maxBuffers;
+		this.takeTimeoutMillis = takeTimeoutMillis;
+		this.permits = new Semaphore(maxBuffers, true);
+	}
+
+	@Override
+	public ResourceHolder<ByteBuffer> take() {
+		acquire();
+		final ResourceHolder<ByteBuffer> holder;
+		try {
+			holder = super.take();
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		takeCount.incrementAndGet();
+		TakeListener listener = takeListener.get();
+		if (listener != null) {
+			listener.onTake(supplier.capacity);
+		}
+		return new ResourceHolder<ByteBuffer>() {
+			private final AtomicBoolean closed = new AtomicBoolean();
+
+			@Override
+			public ByteBuffer get() {
+				return holder.get();
+			}
+
+			@Override
+			public void close() {
+				if (closed.compareAndSet(false, true)) {
+					CloseQuietly.close(holder);
+					permits.release();
+				}
+			}
+		};
+	}
+
+	private void acquire() {
+		if (permits.tryAcquire()) {
+			return;
+		}
+		waitCount.incrementAndGet();
+		try {
+			if (takeTimeoutMillis < 0) {
+				permits.acquire();
+				return;
+			}
+			if (takeTimeoutMillis > 0 && permits.tryAcquire(takeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ISE(e, "Interrupted while waiting for buffer");
+		}
+		rejectCount.incrementAndGet();
+		throw new ISE("All [%d] buffers of [%,d] bytes are in use", maxBuffers, supplier.capacity);
+	}
+
+	/**
+	 * Sets listener of buffers taken by current thread, ex: to attribute them to the query it is running.
+	 *
+	 * @param listener : null to remove current one
+	 * @return previous listener of current thread, to be set back once done
+	 */
+	public TakeListener setTakeListener(TakeListener listener) {
+		TakeListener previous = takeListener.get();
+		if (listener == null) {
+			takeListener.remove();
+		} else {
+			takeListener.set(listener);
+		}
+		return previous;
+	}
+
+	public int getBufferSize() {
+		return supplier.capacity;
+	}
+
+	public boolean isDirect() {
+		return supplier.direct;
+	}
+
+	public int getMaxBuffers() {
+		return maxBuffers;
+	}
+
+	public long getMaxTotalBytes() {
+		return (long) maxBuffers * supplier.capacity;
+	}
+
+	public int getBuffersInUse() {
+		return maxBuffers - permits.availablePermits();
+	}
+
+	public long getBytesInUse() {
+		return (long) getBuffersInUse() * supplier.capacity;
+	}
+
+	/**
+	 * Number of buffers allocated so far, buffers are allocated lazily and reused afterwards.
+	 */
+	public long getBuffersAllocated() {
+		return supplier.allocated.get();
+	}
+
+	public long getTakeCount() {
+		return takeCount.get();
+	}
+
+	/**
+	 * Number of take() calls which found pool exhausted and had to wait.
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/**
+	 * Number of take() calls which failed because pool stayed exhausted.
+	 */
+	public long getRejectCount() {
+		return rejectCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BoundedBufferPool{" +
+				"bufferSize=" + supplier.capacity +
+				", direct=" + supplier.direct +
+				", buffersInUse=" + getBuffersInUse() +
+				", maxBuffers=" + maxBuffers +
+				", buffersAllocated=" + getBuffersAllocated() +
+				", takeCount=" + getTakeCount() +
+				", waitCount=" + getWaitCount() +
+				", rejectCount=" + getRejectCount() +
+				'}';
+	}
+}
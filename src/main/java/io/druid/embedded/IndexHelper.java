@@ -18,11 +18,46 @@ package io.druid.embedded;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.Granularity;
 
 import io.druid.data.input.InputRow;
-import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingSerde;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.aggregation.AggregatorFactory;
 import io.druid.segment.IndexIO;
 import io.druid.segment.IndexMerger;
 import io.druid.segment.IndexSpec;
@@ -30,9 +65,12 @@ import io.druid.segment.QueryableIndex;
 import io.druid.segment.column.ColumnConfig;
 import io.druid.segment.incremental.IncrementalIndex;
 import io.druid.segment.incremental.IncrementalIndexSchema;
+import io.druid.segment.incremental.IndexSizeExceededException;
+import io.druid.segment.incremental.OffheapIncrementalIndex;
 import io.druid.segment.incremental.OnheapIncrementalIndex;
-import io.druid.segment.serde.ComplexMetrics;
+import io.druid.embedded.load.BatchLoader;
 import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.RowBlock;
 import io.druid.jackson.DefaultObjectMapper;
 
 /**
@@ -46,47 +84,697 @@ public class IndexHelper {
 	   * Initialization (handled by Guice in Druid system)
 	   */
 	  static {
-	    ApproximateHistogramFoldingSerde serde = new ApproximateHistogramFoldingSerde();
-	    ComplexMetrics.registerSerde(serde.getTypeName(), serde);
+	    Utils.registerComplexMetrics();
 	  }
 	  static ObjectMapper objectMapper = new DefaultObjectMapper();
+	  static volatile int columnCacheSizeBytes = Integer.getInteger("druid.processing.columnCache.sizeBytes", 0);
 	  static ColumnConfig columnConfig = new ColumnConfig() {
 			
 			@Override
 			public int columnCacheSizeBytes() {
-				// TODO Auto-generated method stub
-				return 0;
+				return columnCacheSizeBytes;
 			}
 	  };
 	  static IndexIO indexIO = new IndexIO(objectMapper, columnConfig );
 	  static IndexMerger merger = new IndexMerger(objectMapper, indexIO);
 
+	  static ListeningExecutorService persistExecutor = MoreExecutors.listeningDecorator(
+	      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+	          .setDaemon(true)
+	          .setNameFormat("embedded-druid-persist-%d")
+	          .build()));
+
+	  /**
+	   * Default segment directories not deleted yet, deleted when JVM exits.
+	   */
+	  private static final Set<File> tempSegmentDirs = Collections.synchronizedSet(new LinkedHashSet<File>());
+	  static {
+	    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+	      @Override
+	      public void run() {
+	        synchronized (tempSegmentDirs) {
+	          for (File dir : tempSegmentDirs) {
+	            FileUtils.deleteQuietly(dir);
+	          }
+	        }
+	      }
+	    }, "embedded-druid-segment-cleanup"));
+	  }
+
 	  /**
-	   * The only way to get a QueryableIndex from IncrementalIndex is to persist the IncrementalIndex
-	   * and reload it. This methods does that.
+	   * Loads all rows of loader into an IncrementalIndex, persists it and reloads it as QueryableIndex.
+	   * If persisted segment is not needed, use {@link #getIncrementalIndex(Loader, IncrementalIndexSchema)}
+	   * and query it directly through {@link QueryHelper#run(io.druid.query.Query, IncrementalIndex)}.
 	   *
 	   * @param loader
-	   * @param aggregates
+	   * @param indexSchema
 	   * @return
 	   * @throws IOException
 	   */
 	  public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema)
 	      throws IOException {
-//	    IncrementalIndex<?> incIndex =
-//	        new OffheapIncrementalIndex(indexSchema, Utils.getBufferPool(), true, maxTotalBufferSize);
-	    IncrementalIndex<?> incIndex = new OnheapIncrementalIndex(indexSchema, true ,Integer.MAX_VALUE);
+	    IncrementalIndex<?> incIndex = getIncrementalIndex(loader, indexSchema);
+	    TempSegmentDir tempDir = TempSegmentDir.create();
+	    try {
+	      return tempDir.own(persist(incIndex, tempDir.getIndexDir()));
+	    } finally {
+	      tempDir.deleteIfUnused();
+	      incIndex.close();
+	    }
+	  }
+
+	  /**
+	   * Same as {@link #getQueryableIndex(List, IncrementalIndexSchema, IngestionConfig)} with single loader.
+	   * Input is split by row count, i.e. every "maxRowsInMemory" rows are persisted as intermediate segment.
+	   *
+	   * @param loader
+	   * @param indexSchema
+	   * @param config
+	   * @return
+	   * @throws IOException
+	   */
+	  public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema,
+	      IngestionConfig config) throws IOException {
+	    return getQueryableIndex(Collections.singletonList(loader), indexSchema, config);
+	  }
+
+	  /**
+	   * Partitioned ingestion. Every loader (ex: one per byte range of large file) is read on worker pool
+	   * into its own IncrementalIndex, which is persisted whenever it reaches "maxRowsInMemory" rows.
+	   * All intermediate segments are then merged into a single segment.
+	   *
+	   * @param loaders
+	   * @param indexSchema
+	   * @param config
+	   * @return
+	   * @throws IOException
+	   */
+	  public static QueryableIndex getQueryableIndex(List<? extends Loader> loaders,
+	      IncrementalIndexSchema indexSchema, IngestionConfig config) throws IOException {
+	    return getQueryableIndex(loaders, indexSchema, config, new IngestionStats());
+	  }
+
+	  /**
+	   * Same as {@link #getQueryableIndex(List, IncrementalIndexSchema, IngestionConfig)}, row counts of
+	   * ingestion (input, dropped and stored rows) are recorded in stats.
+	   *
+	   * @param loaders
+	   * @param indexSchema
+	   * @param config
+	   * @param stats
+	   * @return
+	   * @throws IOException
+	   */
+	  public static QueryableIndex getQueryableIndex(List<? extends Loader> loaders,
+	      IncrementalIndexSchema indexSchema, IngestionConfig config, IngestionStats stats)
+	      throws IOException {
+	    Preconditions.checkArgument(!loaders.isEmpty(), "at least one loader is required");
+	    TempSegmentDir tempDir = TempSegmentDir.create();
+	    try {
+	      return tempDir.own(getQueryableIndex(loaders, indexSchema, config, stats, tempDir.getIndexDir()));
+	    } finally {
+	      tempDir.deleteIfUnused();
+	    }
+	  }
+
+	  /**
+	   * Builds segment of loaders in indexDir, intermediate segments are written next to it. Segment granularity
+	   * of config does not apply : rows are merged into a single segment whatever their time.
+	   */
+	  static QueryableIndex getQueryableIndex(List<? extends Loader> loaders, IncrementalIndexSchema indexSchema,
+	      IngestionConfig config, IngestionStats stats, File indexDir) throws IOException {
+	    List<File> spills = new ArrayList<File>();
+	    try {
+	      spills.addAll(ingest(loaders, indexSchema, config, null, stats, indexDir.getPath() + "-spill-").values());
+	      QueryableIndex index;
+	      if (spills.size() == 1) {
+	        // a single persisted index already is the final segment
+	        FileUtils.deleteDirectory(indexDir);
+	        FileUtils.moveDirectory(spills.get(0), indexDir);
+	        index = indexIO.loadIndex(indexDir);
+	      } else {
+	        index = merge(spills, indexSchema.getMetrics(), indexDir, config.getIndexSpec());
+	      }
+	      stats.setStoredRows(index.getNumRows());
+	      return index;
+	    } finally {
+	      for (File spill : spills) {
+	        FileUtils.deleteQuietly(spill);
+	      }
+	    }
+	  }
+
+	  /**
+	   * Same as {@link #getQueryableIndex(List, IncrementalIndexSchema, IngestionConfig, IngestionStats)} without
+	   * final merge : every persisted intermediate segment is returned as it is, which saves merge time at the
+	   * cost of more segments to query (see {@link QueryHelper#toSegments(List)}). Rows of different segments
+	   * are not rolled up together, so stored rows are the sum of rows of every segment.
+	   * If config has a segment granularity, rows are partitioned by time instead : one segment is returned per
+	   * granularity bucket (ex: per hour), in time order, and queries skip segments outside of their intervals.
+	   * Query granularity should then not be coarser than segment granularity.
+	   *
+	   * @param loaders
+	   * @param indexSchema
+	   * @param config
+	   * @param stats
+	   * @return
+	   * @throws IOException
+	   */
+	  public static List<QueryableIndex> getQueryableIndexes(List<? extends Loader> loaders,
+	      IncrementalIndexSchema indexSchema, IngestionConfig config, IngestionStats stats) throws IOException {
+	    Preconditions.checkArgument(!loaders.isEmpty(), "at least one loader is required");
+	    TempSegmentDir tempDir = TempSegmentDir.create();
+	    try {
+	      return getQueryableIndexes(loaders, indexSchema, config, stats, tempDir);
+	    } finally {
+	      tempDir.deleteIfUnused();
+	    }
+	  }
 
-	    for (InputRow row : loader) {
-	      incIndex.add(row);
+	  private static List<QueryableIndex> getQueryableIndexes(List<? extends Loader> loaders,
+	      IncrementalIndexSchema indexSchema, IngestionConfig config, IngestionStats stats, TempSegmentDir tempDir)
+	      throws IOException {
+	    File indexDir = tempDir.getIndexDir();
+	    Granularity segmentGranularity = config.getSegmentGranularity();
+	    ListMultimap<Long, File> spills =
+	        ingest(loaders, indexSchema, config, segmentGranularity, stats, indexDir.getPath() + "-part-");
+	    List<File> dirs = new ArrayList<File>(spills.values());
+	    List<QueryableIndex> indexes = new ArrayList<QueryableIndex>();
+	    try {
+	      for (Long bucketStart : new TreeSet<Long>(spills.keySet())) {
+	        List<File> bucketSpills = spills.get(bucketStart);
+	        if (segmentGranularity == null || bucketSpills.size() == 1) {
+	          for (File spill : bucketSpills) {
+	            indexes.add(tempDir.own(indexIO.loadIndex(spill)));
+	          }
+	        } else {
+	          File bucketDir = new File(indexDir.getPath() + "-" + bucketStart);
+	          dirs.add(bucketDir);
+	          indexes.add(tempDir.own(merge(bucketSpills, indexSchema.getMetrics(), bucketDir, config.getIndexSpec())));
+	          for (File spill : bucketSpills) {
+	            FileUtils.deleteQuietly(spill);
+	          }
+	        }
+	      }
+	    } catch (IOException | RuntimeException e) {
+	      for (QueryableIndex index : indexes) {
+	        index.close();
+	      }
+	      for (File dir : dirs) {
+	        FileUtils.deleteQuietly(dir);
+	      }
+	      throw e;
+	    }
+	    for (QueryableIndex index : indexes) {
+	      stats.addStoredRows(index.getNumRows());
 	    }
-	    String tmpDir = System.getProperty("druid.segment.dir");
-	    if(tmpDir == null) {
-	    	tmpDir = System.getProperty("java.io.tmpdir") + File.separator +  "druid-tmp-index-";
+	    return indexes;
+	  }
+
+	  /**
+	   * Ingests every loader on worker pool and returns directories of all persisted intermediate segments, by
+	   * start of their segment granularity bucket (0 if granularity is null).
+	   */
+	  private static ListMultimap<Long, File> ingest(List<? extends Loader> loaders,
+	      final IncrementalIndexSchema indexSchema, final IngestionConfig config,
+	      final Granularity segmentGranularity, final IngestionStats stats, String spillPrefix) throws IOException {
+	    ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+	        Executors.newFixedThreadPool(Math.min(config.getNumThreads(), loaders.size()),
+	            new ThreadFactoryBuilder()
+	                .setDaemon(true)
+	                .setNameFormat("embedded-druid-ingest-%d")
+	                .build()));
+	    List<ListenableFuture<ListMultimap<Long, File>>> futures =
+	        new ArrayList<ListenableFuture<ListMultimap<Long, File>>>();
+	    try {
+	      for (int i = 0; i < loaders.size(); i++) {
+	        final Loader loader = loaders.get(i);
+	        final String partitionPrefix = spillPrefix + i + "-";
+	        futures.add(executor.submit(new Callable<ListMultimap<Long, File>>() {
+	          @Override
+	          public ListMultimap<Long, File> call() throws Exception {
+	            return ingest(loader, indexSchema, config, segmentGranularity, stats, partitionPrefix);
+	          }
+	        }));
+	      }
+	      ListMultimap<Long, File> spills = ArrayListMultimap.create();
+	      for (ListMultimap<Long, File> partitionSpills : Futures.allAsList(futures).get()) {
+	        spills.putAll(partitionSpills);
+	      }
+	      return spills;
+	    } catch (InterruptedException e) {
+	      Thread.currentThread().interrupt();
+	      throw Throwables.propagate(e);
+	    } catch (ExecutionException e) {
+	      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+	      throw Throwables.propagate(e.getCause());
+	    } finally {
+	      executor.shutdownNow();
+	    }
+	  }
+
+	  /**
+	   * Reads loader into one IncrementalIndex per segment granularity bucket (a single one if granularity is null).
+	   * Whenever all of them hold maxRowsInMemory rows together, the largest one is persisted, so that memory does
+	   * not grow with number of buckets rows are spread over.
+	   */
+	  private static ListMultimap<Long, File> ingest(Loader loader, IncrementalIndexSchema indexSchema,
+	      IngestionConfig config, Granularity segmentGranularity, IngestionStats stats, String spillPrefix)
+	      throws IOException {
+	    ListMultimap<Long, File> spills = ArrayListMultimap.create();
+	    Map<Long, IncrementalIndex<?>> incIndexes = new HashMap<Long, IncrementalIndex<?>>();
+	    long minTimestamp = getMinTimestamp(indexSchema, config);
+	    long bucketStart = 0;
+	    long bucketEnd = 0;
+	    int rowsInMemory = 0;
+	    IncrementalIndex<?> incIndex = null;
+	    try {
+	      for (InputRow row : loader) {
+	        long timestamp = row.getTimestampFromEpoch();
+	        // rows usually come in time order, bucket is only computed again when it changes
+	        if (segmentGranularity != null && (timestamp < bucketStart || timestamp >= bucketEnd)) {
+	          Interval bucket = segmentGranularity.bucket(new DateTime(timestamp));
+	          bucketStart = bucket.getStartMillis();
+	          bucketEnd = bucket.getEndMillis();
+	          incIndex = null;
+	        }
+	        if (incIndex == null) {
+	          incIndex = incIndexes.get(bucketStart);
+	          if (incIndex == null) {
+	            incIndex = newIncrementalIndex(indexSchema, config);
+	            incIndexes.put(bucketStart, incIndex);
+	          }
+	        }
+	        int size = incIndex.size();
+	        addRow(incIndex, row, minTimestamp, stats);
+	        // a row rolled up with an existing one takes no more room
+	        rowsInMemory += incIndex.size() - size;
+	        if (rowsInMemory >= config.getMaxRowsInMemory()) {
+	          Map.Entry<Long, IncrementalIndex<?>> largest = null;
+	          for (Map.Entry<Long, IncrementalIndex<?>> entry : incIndexes.entrySet()) {
+	            if (largest == null || entry.getValue().size() > largest.getValue().size()) {
+	              largest = entry;
+	            }
+	          }
+	          IncrementalIndex<?> toPersist = largest.getValue();
+	          spills.put(largest.getKey(),
+	              merger.persist(toPersist, new File(spillPrefix + spills.size()), config.getIndexSpec()));
+	          rowsInMemory -= toPersist.size();
+	          incIndexes.remove(largest.getKey());
+	          toPersist.close();
+	          if (toPersist == incIndex) {
+	            incIndex = null;
+	          }
+	        }
+	      }
+	      for (Map.Entry<Long, IncrementalIndex<?>> entry : incIndexes.entrySet()) {
+	        if (!entry.getValue().isEmpty()) {
+	          spills.put(entry.getKey(),
+	              merger.persist(entry.getValue(), new File(spillPrefix + spills.size()), config.getIndexSpec()));
+	        }
+	      }
+	    } finally {
+	      for (IncrementalIndex<?> index : incIndexes.values()) {
+	        index.close();
+	      }
+	    }
+	    return spills;
+	  }
+
+	  /**
+	   * Merges persisted segments into indexDir and loads the result.
+	   */
+	  private static QueryableIndex merge(List<File> spills, AggregatorFactory[] metrics, File indexDir,
+	      IndexSpec indexSpec) throws IOException {
+	    List<QueryableIndex> indexes = new ArrayList<QueryableIndex>();
+	    try {
+	      for (File spill : spills) {
+	        indexes.add(indexIO.loadIndex(spill));
+	      }
+	      if (indexes.isEmpty()) {
+	        throw new IOException("No rows to index");
+	      }
+	      return mergeIndexes(indexes, metrics, indexDir, indexSpec);
+	    } finally {
+	      for (QueryableIndex index : indexes) {
+	        index.close();
+	      }
+	    }
+	  }
+
+	  /**
+	   * Merges (and rolls up) loaded indexes into indexDir and loads the result. Indexes are left open.
+	   */
+	  static QueryableIndex mergeIndexes(List<QueryableIndex> indexes, AggregatorFactory[] metrics, File indexDir,
+	      IndexSpec indexSpec) throws IOException {
+	    merger.mergeQueryableIndex(indexes, metrics, indexDir, indexSpec);
+	    return indexIO.loadIndex(indexDir);
+	  }
+
+	  /**
+	   * Loads all rows of loader into an in-memory IncrementalIndex, without any disk I/O.
+	   * Returned index can be queried as it is (through IncrementalIndexSegment) and it can also be
+	   * queried by other threads while rows are still being added to it.
+	   *
+	   * @param loader
+	   * @param indexSchema
+	   * @return
+	   */
+	  public static IncrementalIndex<?> getIncrementalIndex(Loader loader, IncrementalIndexSchema indexSchema) {
+	    return getIncrementalIndex(loader, indexSchema, IngestionConfig.DEFAULT);
+	  }
+
+	  /**
+	   * Same as {@link #getIncrementalIndex(Loader, IncrementalIndexSchema)}, index is created on heap or
+	   * off heap as per config.
+	   *
+	   * @param loader
+	   * @param indexSchema
+	   * @param config
+	   * @return
+	   */
+	  public static IncrementalIndex<?> getIncrementalIndex(Loader loader, IncrementalIndexSchema indexSchema,
+	      IngestionConfig config) {
+	    return getIncrementalIndex(loader, indexSchema, config, new IngestionStats());
+	  }
+
+	  /**
+	   * Same as {@link #getIncrementalIndex(Loader, IncrementalIndexSchema, IngestionConfig)}, row counts of
+	   * ingestion are recorded in stats.
+	   *
+	   * @param loader
+	   * @param indexSchema
+	   * @param config
+	   * @param stats
+	   * @return
+	   */
+	  public static IncrementalIndex<?> getIncrementalIndex(Loader loader, IncrementalIndexSchema indexSchema,
+	      IngestionConfig config, IngestionStats stats) {
+	    long minTimestamp = getMinTimestamp(indexSchema, config);
+	    IncrementalIndex<?> incIndex = newIncrementalIndex(indexSchema, config);
+	    try {
+	      for (InputRow row : loader) {
+	        addRow(incIndex, row, minTimestamp, stats);
+	      }
+	    } catch (IndexSizeExceededException e) {
+	      incIndex.close();
+	      throw Throwables.propagate(e);
+	    } catch (RuntimeException e) {
+	      incIndex.close();
+	      throw e;
+	    }
+	    stats.addStoredRows(incIndex.size());
+	    return incIndex;
+	  }
+
+	  /**
+	   * Adds rows of block to index through the reused row view of block, for callers feeding an IncrementalIndex
+	   * created by {@link #newIncrementalIndex(IncrementalIndexSchema, IngestionConfig)} with column oriented data.
+	   * As in loader based ingestion (which does the same for any {@link BatchLoader}), rows older than minTimestamp
+	   * of config (or of indexSchema) are dropped, and input and dropped rows are counted in stats.
+	   *
+	   * @param incIndex
+	   * @param block
+	   * @param indexSchema
+	   * @param config
+	   * @param stats
+	   * @return number of rows added to index
+	   * @throws IndexSizeExceededException
+	   */
+	  public static int addBlock(IncrementalIndex<?> incIndex, RowBlock block, IncrementalIndexSchema indexSchema,
+	      IngestionConfig config, IngestionStats stats) throws IndexSizeExceededException {
+	    long minTimestamp = getMinTimestamp(indexSchema, config);
+	    int added = 0;
+	    for (int i = 0; i < block.getSize(); i++) {
+	      if (addRow(incIndex, block.getRow(i), minTimestamp, stats)) {
+	        added++;
+	      }
 	    }
-	    File tmpIndexDir = new File(tmpDir + loader.hashCode());
-	    
-	    merger.persist(incIndex, tmpIndexDir, new IndexSpec());
-	    return indexIO.loadIndex(tmpIndexDir);
+	    return added;
+	  }
+
+	  /**
+	   * Adds row to index unless it is older than minTimestamp.
+	   *
+	   * @return false if row was dropped
+	   */
+	  static boolean addRow(IncrementalIndex<?> incIndex, InputRow row, long minTimestamp, IngestionStats stats)
+	      throws IndexSizeExceededException {
+	    stats.incrementInputRows();
+	    if (row.getTimestampFromEpoch() < minTimestamp) {
+	      stats.incrementDroppedRows();
+	      return false;
+	    }
+	    incIndex.add(row);
+	    return true;
+	  }
+
+	  static long getMinTimestamp(IncrementalIndexSchema indexSchema, IngestionConfig config) {
+	    return config.getMinTimestamp() != null ? config.getMinTimestamp() : indexSchema.getMinTimestamp();
+	  }
+
+	  /**
+	   * Schema actually used to build indexes : query granularity and minTimestamp of config override those
+	   * of indexSchema, and millisecond granularity keeps timestamps at millisecond precision.
+	   */
+	  static IncrementalIndexSchema getIndexSchema(IncrementalIndexSchema indexSchema, IngestionConfig config) {
+	    QueryGranularity granularity = indexSchema.getGran();
+	    if (config.isMillisecondGranularity()) {
+	      granularity = QueryGranularity.fromString("NONE");
+	    } else if (config.getQueryGranularity() != null) {
+	      granularity = config.getQueryGranularity();
+	    }
+	    if (granularity == indexSchema.getGran() && config.getMinTimestamp() == null) {
+	      return indexSchema;
+	    }
+	    return new IncrementalIndexSchema(getMinTimestamp(indexSchema, config), granularity,
+	        indexSchema.getDimensionsSpec(), indexSchema.getMetrics());
+	  }
+
+	  /**
+	   * Creates empty IncrementalIndex, applying query granularity and minTimestamp of config to indexSchema.
+	   * Off-heap index takes its aggregation buffers from {@link Utils#getOffheapBufferPool()} and gives them
+	   * back on close().
+	   *
+	   * @param indexSchema
+	   * @param config
+	   * @return
+	   */
+	  public static IncrementalIndex<?> newIncrementalIndex(IncrementalIndexSchema indexSchema, IngestionConfig config) {
+	    indexSchema = getIndexSchema(indexSchema, config);
+	    if (config.isOffheap()) {
+	      return new OffheapIncrementalIndex(indexSchema, true, true, true, Integer.MAX_VALUE,
+	          Utils.getOffheapBufferPool());
+	    }
+	    return new OnheapIncrementalIndex(indexSchema, true ,Integer.MAX_VALUE);
+	  }
+
+	  /**
+	   * Persists IncrementalIndex at given location and reloads it as QueryableIndex.
+	   * IncrementalIndex is left open, it is up to caller to close it once it is not queried anymore.
+	   *
+	   * @param incIndex
+	   * @param indexDir
+	   * @return
+	   * @throws IOException
+	   */
+	  public static QueryableIndex persist(IncrementalIndex<?> incIndex, File indexDir) throws IOException {
+	    return persist(incIndex, indexDir, new IndexSpec());
+	  }
+
+	  /**
+	   * Same as {@link #persist(IncrementalIndex, File)} with given segment format.
+	   *
+	   * @param incIndex
+	   * @param indexDir
+	   * @param indexSpec
+	   * @return
+	   * @throws IOException
+	   */
+	  public static QueryableIndex persist(IncrementalIndex<?> incIndex, File indexDir, IndexSpec indexSpec)
+	      throws IOException {
+	    merger.persist(incIndex, indexDir, indexSpec);
+	    return indexIO.loadIndex(indexDir);
+	  }
+
+	  /**
+	   * Persists IncrementalIndex in background. IncrementalIndex can be queried while persist is in progress
+	   * and can be swapped with QueryableIndex once returned future completes.
+	   *
+	   * @param incIndex
+	   * @param indexDir
+	   * @return
+	   */
+	  public static ListenableFuture<QueryableIndex> persistInBackground(IncrementalIndex<?> incIndex, File indexDir) {
+	    return persistInBackground(incIndex, indexDir, new IndexSpec());
+	  }
+
+	  public static ListenableFuture<QueryableIndex> persistInBackground(final IncrementalIndex<?> incIndex,
+	      final File indexDir, final IndexSpec indexSpec) {
+	    return persistExecutor.submit(new Callable<QueryableIndex>() {
+	      @Override
+	      public QueryableIndex call() throws Exception {
+	        return persist(incIndex, indexDir, indexSpec);
+	      }
+	    });
+	  }
+
+	  /**
+	   * Builds segment format from names used in Druid configuration, null keeps default value.
+	   *
+	   * @param bitmapType : "concise" (default) or "roaring"
+	   * @param dimensionCompression : "lz4" (default), "lzf" or "uncompressed"
+	   * @param metricCompression : "lz4" (default), "lzf" or "uncompressed"
+	   * @return
+	   */
+	  public static IndexSpec createIndexSpec(String bitmapType, String dimensionCompression,
+	      String metricCompression) {
+	    Map<String, Object> spec = new HashMap<String, Object>();
+	    if (bitmapType != null) {
+	      spec.put("bitmap", Collections.singletonMap("type", bitmapType));
+	    }
+	    if (dimensionCompression != null) {
+	      spec.put("dimensionCompression", dimensionCompression);
+	    }
+	    if (metricCompression != null) {
+	      spec.put("metricCompression", metricCompression);
+	    }
+	    return objectMapper.convertValue(spec, IndexSpec.class);
+	  }
+
+	  /**
+	   * Size in bytes of every column (and index metadata) of a persisted segment, as recorded in its
+	   * "meta.smoosh" file.
+	   *
+	   * @param indexDir
+	   * @return
+	   * @throws IOException
+	   */
+	  public static Map<String, Long> getColumnSizes(File indexDir) throws IOException {
+	    Map<String, Long> sizes = new TreeMap<String, Long>();
+	    List<String> lines = FileUtils.readLines(new File(indexDir, "meta.smoosh"), Charsets.UTF_8);
+	    // first line is "v1,maxChunkSize,numChunks", then "name,chunk,start,end" per entry
+	    for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+	      String[] fields = line.split(",");
+	      if (fields.length != 4) {
+	        throw new IOException(String.format("Invalid meta.smoosh line [%s] in [%s]", line, indexDir));
+	      }
+	      long size = Long.parseLong(fields[3]) - Long.parseLong(fields[2]);
+	      Long previous = sizes.get(fields[0]);
+	      sizes.put(fields[0], previous == null ? size : previous + size);
+	    }
+	    return sizes;
+	  }
+
+	  /**
+	   * By default, segment files are created under location "druid.segment.dir" (or under "java.io.tmpdir" if
+	   * property is not set), in a new directory with a unique name ("druid-tmp-index-" followed by a random UUID).
+	   * Intermediate segments are written next to returned directory, inside that unique directory, which is
+	   * deleted when JVM exits : segments meant to outlive the process should be persisted to a directory of
+	   * caller (see {@link #persist(IncrementalIndex, File)}) or built through {@link SegmentCache}.
+	   * Indexes returned by getQueryableIndex(es) own their directory, which is deleted as soon as they are closed.
+	   *
+	   * @return
+	   */
+	  static File newSegmentDir() {
+	    return TempSegmentDir.create().getIndexDir();
+	  }
+
+	  /**
+	   * Unique default segment directory, deleted once every index loaded from it is closed (or when JVM exits
+	   * if some index is never closed).
+	   */
+	  private static class TempSegmentDir {
+	    private final File dir;
+	    private final AtomicInteger openIndexes = new AtomicInteger();
+
+	    private TempSegmentDir(File dir) {
+	      this.dir = dir;
+	    }
+
+	    static TempSegmentDir create() {
+	      String baseDir = System.getProperty("druid.segment.dir", System.getProperty("java.io.tmpdir"));
+	      File dir = new File(baseDir, "druid-tmp-index-" + UUID.randomUUID());
+	      tempSegmentDirs.add(dir);
+	      return new TempSegmentDir(dir);
+	    }
+
+	    File getIndexDir() {
+	      return new File(dir, "index");
+	    }
+
+	    /**
+	     * Wraps index loaded from this directory, closing it (once) releases the directory. Proxy is used so that
+	     * every other method goes to the loaded index as it is.
+	     */
+	    QueryableIndex own(final QueryableIndex index) {
+	      openIndexes.incrementAndGet();
+	      final AtomicBoolean closed = new AtomicBoolean();
+	      InvocationHandler handler = new InvocationHandler() {
+	        @Override
+	        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+	          String name = method.getName();
+	          int numArgs = method.getParameterTypes().length;
+	          if ("close".equals(name) && numArgs == 0) {
+	            if (closed.compareAndSet(false, true)) {
+	              try {
+	                index.close();
+	              } finally {
+	                if (openIndexes.decrementAndGet() == 0) {
+	                  delete();
+	                }
+	              }
+	            }
+	            return null;
+	          } else if ("equals".equals(name) && numArgs == 1) {
+	            return proxy == args[0];
+	          } else if ("hashCode".equals(name) && numArgs == 0) {
+	            return System.identityHashCode(proxy);
+	          }
+	          try {
+	            return method.invoke(index, args);
+	          } catch (InvocationTargetException e) {
+	            throw e.getCause();
+	          }
+	        }
+	      };
+	      return (QueryableIndex) Proxy.newProxyInstance(IndexHelper.class.getClassLoader(),
+	          new Class<?>[] { QueryableIndex.class }, handler);
+	    }
+
+	    /**
+	     * Deletes directory if no index owns it, ex: ingestion failed.
+	     */
+	    void deleteIfUnused() {
+	      if (openIndexes.get() == 0) {
+	        delete();
+	      }
+	    }
+
+	    private void delete() {
+	      FileUtils.deleteQuietly(dir);
+	      tempSegmentDirs.remove(dir);
+	    }
+	  }
+
+	  /**
+	   * Size of the lookup cache put in front of every dictionary encoded (string) column, so that values of
+	   * frequently read dictionary ids are not decompressed again. 0 (default) disables caching.
+	   * Initial value is taken from "druid.processing.columnCache.sizeBytes" system property, new value applies
+	   * to indexes loaded afterwards.
+	   * Druid creates the cache (CachingIndexed) every time a query reads the column of a segment, so values are
+	   * only cached during one scan and cache does not survive repeated queries; sizeBytes is allocated per column
+	   * per running query. Druid keeps no hit/miss/eviction counts for it, so none are reported.
+	   *
+	   * @param sizeBytes
+	   */
+	  public static void setColumnCacheSizeBytes(int sizeBytes) {
+	    Preconditions.checkArgument(sizeBytes >= 0, "column cache size can not be negative");
+	    columnCacheSizeBytes = sizeBytes;
+	  }
+
+	  public static int getColumnCacheSizeBytes() {
+	    return columnCacheSizeBytes;
 	  }
 
 	  /**
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.granularity.QueryGranularity;
+import io.druid.segment.IndexSpec;
+
+import com.google.common.base.Preconditions;
+import com.metamx.common.Granularity;
+
+/**
+ * Settings used by {@link IndexHelper} while building segment files from one or more Loader objects.
+ * Default configuration keeps all rows in memory and uses one ingestion thread per available core.
+ *
+ */
+public class IngestionConfig {
+	public static final IngestionConfig DEFAULT = builder().build();
+
+	private final int maxRowsInMemory;
+	private final int numThreads;
+	private final boolean offheap;
+	private final long persistPeriodMillis;
+	private final QueryGranularity queryGranularity;
+	private final boolean millisecondGranularity;
+	private final Long minTimestamp;
+	private final IndexSpec indexSpec;
+	private final Granularity segmentGranularity;
+
+	private IngestionConfig(int maxRowsInMemory, int numThreads, boolean offheap, long persistPeriodMillis,
+			QueryGranularity queryGranularity, boolean millisecondGranularity, Long minTimestamp, IndexSpec indexSpec,
+			Granularity segmentGranularity) {
+		this.maxRowsInMemory = maxRowsInMemory;
+		this.numThreads = numThreads;
+		this.offheap = offheap;
+		this.persistPeriodMillis = persistPeriodMillis;
+		this.queryGranularity = queryGranularity;
+		this.millisecondGranularity = millisecondGranularity;
+		this.minTimestamp = minTimestamp;
+		this.indexSpec = indexSpec;
+		this.segmentGranularity = segmentGranularity;
+	}
+
+	/**
+	 * Number of (rolled up) rows kept in memory before an IncrementalIndex is persisted as intermediate segment.
+	 * Bounds rows of all IncrementalIndexes of an ingestion thread together (one per segment granularity bucket),
+	 * the largest one is persisted once they reach it.
+	 */
+	public int getMaxRowsInMemory() {
+		return maxRowsInMemory;
+	}
+
+	/**
+	 * Number of worker threads used to ingest partitions concurrently.
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * If true, aggregation state is kept in direct buffers taken from {@link Utils#getOffheapBufferPool()}
+	 * instead of on heap. Buffers are returned to the pool when IncrementalIndex is closed.
+	 */
+	public boolean isOffheap() {
+		return offheap;
+	}
+
+	/**
+	 * Maximum time rows stay in live index of {@link RealtimeIndex} before it is handed off to an immutable segment.
+	 */
+	public long getPersistPeriodMillis() {
+		return persistPeriodMillis;
+	}
+
+	/**
+	 * Granularity row timestamps are truncated to before rows with same dimension values are rolled up
+	 * (ex: MINUTE), null to keep granularity of IncrementalIndexSchema.
+	 */
+	public QueryGranularity getQueryGranularity() {
+		return queryGranularity;
+	}
+
+	/**
+	 * If true, timestamps are kept at millisecond precision (NONE query granularity), so that only rows with same
+	 * timestamp and same dimension values are combined. This is the finest rollup Druid 0.9.1 index supports :
+	 * it always aggregates identical rows, rollup can not be disabled altogether.
+	 */
+	public boolean isMillisecondGranularity() {
+		return millisecondGranularity;
+	}
+
+	/**
+	 * Rows older than this timestamp (in ms) are dropped and counted in {@link IngestionStats#getDroppedRows()},
+	 * null to keep minTimestamp of IncrementalIndexSchema.
+	 */
+	public Long getMinTimestamp() {
+		return minTimestamp;
+	}
+
+	/**
+	 * Format of persisted segments (bitmap type, dimension and metric compression), see
+	 * {@link IndexHelper#createIndexSpec(String, String, String)}.
+	 */
+	public IndexSpec getIndexSpec() {
+		return indexSpec;
+	}
+
+	/**
+	 * Time span of every segment built by {@link IndexHelper#getQueryableIndexes(java.util.List,
+	 * io.druid.segment.incremental.IncrementalIndexSchema, IngestionConfig, IngestionStats)} (ex: HOUR or DAY),
+	 * so that queries skip segments outside of their intervals. Null keeps one segment per intermediate persist.
+	 * Only used by getQueryableIndexes : getQueryableIndex and {@link AppendableIndex} always build a single
+	 * segment, whatever the time span of its rows.
+	 */
+	public Granularity getSegmentGranularity() {
+		return segmentGranularity;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private int maxRowsInMemory = Integer.MAX_VALUE;
+		private int numThreads = Runtime.getRuntime().availableProcessors();
+		private boolean offheap = false;
+		private long persistPeriodMillis = Long.MAX_VALUE;
+		private QueryGranularity queryGranularity;
+		private boolean millisecondGranularity = false;
+		private Long minTimestamp;
+		private IndexSpec indexSpec = new IndexSpec();
+		private Granularity segmentGranularity;
+
+		public Builder withMaxRowsInMemory(int maxRowsInMemory) {
+			Preconditions.checkArgument(maxRowsInMemory > 0, "maxRowsInMemory must be positive");
+			this.maxRowsInMemory = maxRowsInMemory;
+			return this;
+		}
+
+		public Builder withNumThreads(int numThreads) {
+			Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Builder withOffheap(boolean offheap) {
+			this.offheap = offheap;
+			return this;
+		}
+
+		public Builder withPersistPeriodMillis(long persistPeriodMillis) {
+			Preconditions.checkArgument(persistPeriodMillis > 0, "persistPeriodMillis must be positive");
+			this.persistPeriodMillis = persistPeriodMillis;
+			return this;
+		}
+
+		public Builder withQueryGranularity(QueryGranularity queryGranularity) {
+			this.queryGranularity = queryGranularity;
+			return this;
+		}
+
+		public Builder withMillisecondGranularity(boolean millisecondGranularity) {
+			this.millisecondGranularity = millisecondGranularity;
+			return this;
+		}
+
+		public Builder withMinTimestamp(long minTimestamp) {
+			this.minTimestamp = minTimestamp;
+			return this;
+		}
+
+		public Builder withIndexSpec(IndexSpec indexSpec) {
+			this.indexSpec = Preconditions.checkNotNull(indexSpec, "indexSpec");
+			return this;
+		}
+
+		public Builder withSegmentGranularity(Granularity segmentGranularity) {
+			this.segmentGranularity = segmentGranularity;
+			return this;
+		}
+
+		public IngestionConfig build() {
+			Preconditions.checkArgument(!millisecondGranularity || queryGranularity == null,
+					"queryGranularity can not be set with millisecond granularity");
+			return new IngestionConfig(maxRowsInMemory, numThreads, offheap, persistPeriodMillis,
+					queryGranularity, millisecondGranularity, minTimestamp, indexSpec, segmentGranularity);
+		}
+	}
+}
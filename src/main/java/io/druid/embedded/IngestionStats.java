@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Row counts of an ingestion : rows read from loaders, rows dropped (older than minTimestamp) and rows
+ * actually stored once rolled up, which shows how much rollup at chosen query granularity compacts input.
+ *
+ */
+public class IngestionStats {
+	private final AtomicLong inputRows = new AtomicLong();
+	private final AtomicLong droppedRows = new AtomicLong();
+	private final AtomicLong storedRows = new AtomicLong();
+
+	void incrementInputRows() {
+		inputRows.incrementAndGet();
+	}
+
+	void incrementDroppedRows() {
+		droppedRows.incrementAndGet();
+	}
+
+	void addStoredRows(long rows) {
+		storedRows.addAndGet(rows);
+	}
+
+	void setStoredRows(long rows) {
+		storedRows.set(rows);
+	}
+
+	public long getInputRows() {
+		return inputRows.get();
+	}
+
+	public long getDroppedRows() {
+		return droppedRows.get();
+	}
+
+	public long getStoredRows() {
+		return storedRows.get();
+	}
+
+	/**
+	 * Number of ingested (not dropped) input rows per stored row, 0 if nothing is stored.
+	 */
+	public double getRollupRatio() {
+		long stored = getStoredRows();
+		return stored == 0 ? 0 : (double) (getInputRows() - getDroppedRows()) / stored;
+	}
+
+	@Override
+	public String toString() {
+		return "IngestionStats{" +
+				"inputRows=" + getInputRows() +
+				", droppedRows=" + getDroppedRows() +
+				", storedRows=" + getStoredRows() +
+				", rollupRatio=" + getRollupRatio() +
+				'}';
+	}
+}
@@ -16,11 +16,18 @@
 
 package io.druid.embedded;
 
+import io.druid.collections.StupidPool;
+import io.druid.embedded.metrics.QueryMetrics;
+import io.druid.embedded.metrics.QueryStats;
 import io.druid.jackson.DefaultObjectMapper;
+import io.druid.query.CacheStrategy;
 import io.druid.query.DefaultQueryRunnerFactoryConglomerate;
+import io.druid.query.FinalizeResultsQueryRunner;
 import io.druid.query.Query;
+import io.druid.query.QueryRunner;
 import io.druid.query.QueryRunnerFactory;
 import io.druid.query.QueryRunnerFactoryConglomerate;
+import io.druid.query.QueryToolChest;
 import io.druid.query.groupby.GroupByQuery;
 import io.druid.query.groupby.GroupByQueryConfig;
 import io.druid.query.groupby.GroupByQueryEngine;
@@ -48,20 +55,36 @@ import io.druid.query.topn.TopNQuery;
 import io.druid.query.topn.TopNQueryConfig;
 import io.druid.query.topn.TopNQueryQueryToolChest;
 import io.druid.query.topn.TopNQueryRunnerFactory;
+import io.druid.segment.IncrementalIndexSegment;
 import io.druid.segment.QueryableIndex;
 import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.Segment;
+import io.druid.segment.incremental.IncrementalIndex;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import org.joda.time.Interval;
 
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Maps;
 import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
 
 /**
  * This Helper class maintains all required query interface related classes and invokes it based
@@ -70,11 +93,18 @@ import com.metamx.common.guava.Sequence;
  */
 public class QueryHelper {
 	private static final QueryRunnerFactoryConglomerate conglomerate;
+	private static final ObjectMapper jsonMapper = new DefaultObjectMapper();
+	private static final List<String> NON_RESULT_CONTEXT_KEYS =
+			Arrays.asList("queryId", "timeout", "priority", "useCache", "populateCache");
+	private static final QueryMetrics metrics = new QueryMetrics();
+	private static final TrackingQueryWatcher watcher = new TrackingQueryWatcher();
 
 	/*
 	 * Initialize QueryRunnerFactoryConglomerate.
 	 */
 	static {
+		Utils.registerComplexMetrics();
+
 		HashMap<Class<? extends Query>, QueryRunnerFactory> map =
 	        Maps.<Class<? extends Query>, QueryRunnerFactory>newHashMap();
 
@@ -93,9 +123,162 @@ public class QueryHelper {
 	    conglomerate = _conglomerate;
 	}
 
-	@SuppressWarnings("unchecked")
 	public static Sequence run(Query query, QueryableIndex index) {
-		return findFactory(query).createRunner(new QueryableIndexSegment("", index)).run(query, null);
+		return run(query, new QueryableIndexSegment("", index));
+	}
+
+	/**
+	 * Runs query against index through result cache. Results are materialized and kept in cache if query
+	 * tool chest supports caching (and "useCache" is not false in query context), so that same query on
+	 * same index is not executed again.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Sequence run(Query query, QueryableIndex index, QueryResultCache cache) {
+		String key = getCacheKey(query);
+		if (cache == null || key == null) {
+			return run(query, index);
+		}
+		List cached = cache.get(index, key);
+		if (cached != null) {
+			return Sequences.simple(cached);
+		}
+		List results = Sequences.toList(run(query, index), new ArrayList());
+		cache.put(index, key, results);
+		return Sequences.simple(results);
+	}
+
+	/**
+	 * Query serialized to json (with sorted map keys), or null if query results can not be cached. Unlike tool chest
+	 * cache key, json has output names (aggregators, dimensions...) which are part of results. Query id and context
+	 * entries which do not change results (timeout, priority, cache flags) are not part of the key.
+	 */
+	@SuppressWarnings("unchecked")
+	private static String getCacheKey(Query query) {
+		CacheStrategy strategy = findFactory(query).getToolchest().getCacheStrategy(query);
+		if (strategy == null || "false".equals(String.valueOf(query.getContextValue("useCache")))) {
+			return null;
+		}
+		Map<String, Object> json = jsonMapper.convertValue(query, Map.class);
+		Object context = json.get("context");
+		if (context instanceof Map) {
+			Map<String, Object> resultContext = new HashMap<String, Object>((Map<String, Object>) context);
+			resultContext.keySet().removeAll(NON_RESULT_CONTEXT_KEYS);
+			json.put("context", resultContext);
+		}
+		try {
+			return jsonMapper.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS).writeValueAsString(json);
+		} catch (JsonProcessingException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	/**
+	 * Runs query directly against in-memory IncrementalIndex, without persisting it.
+	 */
+	public static Sequence run(Query query, IncrementalIndex<?> index) {
+		return run(query, new IncrementalIndexSegment(index, ""));
+	}
+
+	/**
+	 * Runs query on segment. Segment is scanned on consuming thread as results are consumed, rows are not
+	 * materialized first, and scan stops on next row once query is cancelled or times out.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Sequence run(Query query, Segment segment) {
+		query = withQueryId(query);
+		QueryStats stats = metrics.start(query);
+		QueryRunner runner = metrics.decorate(findFactory(query), watcher.watch(query, segment), stats);
+		return metrics.complete(watcher.watch(query, runner), stats);
+	}
+
+	/**
+	 * Runs query on all segments (ex: one per day or one per ingestion partition) using processing executor.
+	 */
+	public static Sequence run(Query query, List<? extends Segment> segments) {
+		return run(query, segments, Utils.getProcessingExecutor());
+	}
+
+	/**
+	 * Runs query on every segment concurrently on executor and merges per segment results through
+	 * tool chest. Unlike single segment run, merged results are finalized. Segments whose data does not
+	 * overlap query intervals are skipped.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Sequence run(Query query, List<? extends Segment> segments, ExecutorService executor) {
+		query = withQueryId(query);
+		QueryRunnerFactory factory = findFactory(query);
+		QueryToolChest toolChest = factory.getToolchest();
+		QueryStats stats = metrics.start(query);
+		List<QueryRunner> runners = new ArrayList<QueryRunner>();
+		for (Segment segment : prune(query, segments)) {
+			runners.add(metrics.decorate(factory, watcher.watch(query, segment), stats));
+		}
+		QueryRunner runner = new FinalizeResultsQueryRunner(
+				toolChest.mergeResults(factory.mergeRunners(executor, runners)), toolChest);
+		return metrics.complete(watcher.watch(query, runner), stats);
+	}
+
+	/**
+	 * Segments which may hold rows in query intervals (ex: segments of a time partitioned index covering last
+	 * hour), a segment whose data interval is unknown is kept.
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Segment> prune(Query query, List<? extends Segment> segments) {
+		List<Interval> intervals = query.getIntervals();
+		List<Segment> pruned = new ArrayList<Segment>();
+		for (Segment segment : segments) {
+			Interval dataInterval = segment.getDataInterval();
+			if (dataInterval == null) {
+				pruned.add(segment);
+				continue;
+			}
+			for (Interval interval : intervals) {
+				if (interval.overlaps(dataInterval)) {
+					pruned.add(segment);
+					break;
+				}
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Gives a random id to query without one, so that it can be cancelled and found in metrics.
+	 */
+	static Query withQueryId(Query query) {
+		return query.getId() == null ? query.withId(UUID.randomUUID().toString()) : query;
+	}
+
+	/**
+	 * Cancels running query : its futures are interrupted and consumer of its results gets a
+	 * QueryInterruptedException. Query timeout can also be set in milliseconds with "timeout" context value.
+	 *
+	 * @return false if no query with this id is running
+	 */
+	public static boolean cancel(String queryId) {
+		return watcher.cancel(queryId);
+	}
+
+	public static TrackingQueryWatcher getQueryWatcher() {
+		return watcher;
+	}
+
+	/**
+	 * Wraps indexes as segments to be queried together through {@link #run(Query, List)}.
+	 */
+	public static List<Segment> toSegments(List<QueryableIndex> indexes) {
+		List<Segment> segments = new ArrayList<Segment>();
+		for (int i = 0; i < indexes.size(); i++) {
+			segments.add(new QueryableIndexSegment("index_" + i, indexes.get(i)));
+		}
+		return segments;
+	}
+
+	/**
+	 * Metrics of all queries run through this helper, add a listener or register MBean to observe them.
+	 */
+	public static QueryMetrics getMetrics() {
+		return metrics;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -112,13 +295,13 @@ public class QueryHelper {
 	        new TimeseriesQueryQueryToolChest(Utils.NoopIntervalChunkingQueryRunnerDecorator());
 	    TimeseriesQueryEngine engine = new TimeseriesQueryEngine();
 	    final TimeseriesQueryRunnerFactory factory =
-	        new TimeseriesQueryRunnerFactory(toolChest, engine, Utils.NOOP_QUERYWATCHER);
+	        new TimeseriesQueryRunnerFactory(toolChest, engine, watcher);
 	    return factory;
 	}
 
 	private static TimeBoundaryQueryRunnerFactory getTimeBoundaryQueryRunnerFactory() {
 		final TimeBoundaryQueryRunnerFactory factory =
-	        new TimeBoundaryQueryRunnerFactory(Utils.NOOP_QUERYWATCHER);
+	        new TimeBoundaryQueryRunnerFactory(watcher);
 	    return factory;
 	}
 
@@ -126,7 +309,7 @@ public class QueryHelper {
 		SegmentMetadataQueryConfig smqc = new SegmentMetadataQueryConfig();
 	    SegmentMetadataQueryQueryToolChest toolChest = new SegmentMetadataQueryQueryToolChest(smqc);
 	    final SegmentMetadataQueryRunnerFactory factory =
-	        new SegmentMetadataQueryRunnerFactory(toolChest, Utils.NOOP_QUERYWATCHER);
+	        new SegmentMetadataQueryRunnerFactory(toolChest, watcher);
 	    return factory;
 	}
 
@@ -136,7 +319,7 @@ public class QueryHelper {
 	            Utils.NoopIntervalChunkingQueryRunnerDecorator());
 	    SelectQueryEngine engine = new SelectQueryEngine();
 	    final SelectQueryRunnerFactory factory =
-	        new SelectQueryRunnerFactory(toolChest, engine, Utils.NOOP_QUERYWATCHER);
+	        new SelectQueryRunnerFactory(toolChest, engine, watcher);
 	    return factory;
 	}
 
@@ -145,7 +328,7 @@ public class QueryHelper {
 	        new SearchQueryQueryToolChest(new SearchQueryConfig(),
 	            Utils.NoopIntervalChunkingQueryRunnerDecorator());
 	    SearchQueryRunnerFactory factory =
-	        new SearchQueryRunnerFactory(toolChest, Utils.NOOP_QUERYWATCHER);
+	        new SearchQueryRunnerFactory(toolChest, watcher);
 	    return factory;
 	}
 
@@ -154,7 +337,7 @@ public class QueryHelper {
 	        new TopNQueryQueryToolChest(new TopNQueryConfig(),
 	            Utils.NoopIntervalChunkingQueryRunnerDecorator());
 	    TopNQueryRunnerFactory factory =
-	        new TopNQueryRunnerFactory(Utils.getBufferPool(), toolchest, Utils.NOOP_QUERYWATCHER);
+	        new TopNQueryRunnerFactory(Utils.getBufferPool(), toolchest, watcher);
 	    return factory;
 	}
 
@@ -164,18 +347,19 @@ public class QueryHelper {
 		config.setMaxIntermediateRows(10000);
 
 		Supplier<GroupByQueryConfig> configSupplier = Suppliers.ofInstance(config);
-		GroupByQueryEngine engine = new GroupByQueryEngine(configSupplier, Utils.getBufferPool());
+		// Engine, tool chest and merging runner share process wide processing buffer pool.
+		StupidPool<ByteBuffer> bufferPool = Utils.getBufferPool();
+		GroupByQueryEngine engine = new GroupByQueryEngine(configSupplier, bufferPool);
 
 		GroupByQueryRunnerFactory factory =
-				new GroupByQueryRunnerFactory(engine, Utils.NOOP_QUERYWATCHER, configSupplier,
-						new GroupByQueryQueryToolChest(configSupplier, mapper, engine, Utils.getBufferPool(),
-		                Utils.NoopIntervalChunkingQueryRunnerDecorator()), Utils.getBufferPool());
+				new GroupByQueryRunnerFactory(engine, watcher, configSupplier,
+						new GroupByQueryQueryToolChest(configSupplier, mapper, engine, bufferPool,
+		                Utils.NoopIntervalChunkingQueryRunnerDecorator()), bufferPool);
 		return factory;
 	}
 
 	public static Query getQuery(InputStream queryInputStream) throws JsonParseException,
 		JsonMappingException, IOException {
-		ObjectMapper jsonMapper = new DefaultObjectMapper();
 		return jsonMapper.readValue(queryInputStream, Query.class);
 	}
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * LRU cache of materialized query results. Entries are keyed by serialized query and identity of the index
+ * it was run against, so a reloaded or replaced index never serves results of the old one; entries of an
+ * index which is closed or replaced can be dropped at once with invalidate(index).
+ * Cache is bounded both by number of entries and by total number of result rows.
+ *
+ */
+public class QueryResultCache {
+	private final int maxEntries;
+	private final long maxRows;
+	private final LinkedHashMap<Key, List<?>> entries = new LinkedHashMap<Key, List<?>>(16, 0.75f, true);
+	private long rows;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	public QueryResultCache(int maxEntries, long maxRows) {
+		Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive");
+		Preconditions.checkArgument(maxRows > 0, "maxRows must be positive");
+		this.maxEntries = maxEntries;
+		this.maxRows = maxRows;
+	}
+
+	public synchronized List<?> get(Object index, String query) {
+		List<?> results = entries.get(new Key(index, query));
+		if (results == null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return results;
+	}
+
+	public synchronized void put(Object index, String query, List<?> results) {
+		if (results.size() > maxRows) {
+			return;
+		}
+		List<?> previous = entries.put(new Key(index, query), results);
+		if (previous != null) {
+			rows -= previous.size();
+		}
+		rows += results.size();
+		Iterator<Map.Entry<Key, List<?>>> lru = entries.entrySet().iterator();
+		while (rows > maxRows || entries.size() > maxEntries) {
+			rows -= lru.next().getValue().size();
+			lru.remove();
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * Drops all results computed on index, to be called once index is closed or replaced.
+	 */
+	public synchronized void invalidate(Object index) {
+		Iterator<Map.Entry<Key, List<?>>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, List<?>> entry = it.next();
+			if (entry.getKey().index == index) {
+				rows -= entry.getValue().size();
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		rows = 0;
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getNumRows() {
+		return rows;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "QueryResultCache{" +
+				"entries=" + entries.size() +
+				", rows=" + rows +
+				", hitCount=" + hitCount +
+				", missCount=" + missCount +
+				", evictionCount=" + evictionCount +
+				'}';
+	}
+
+	private static class Key {
+		final Object index;
+		final String query;
+
+		Key(Object index, String query) {
+			this.index = index;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return index == key.index && query.equals(key.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(index) + query.hashCode();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.jackson.DefaultObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.metamx.common.guava.CloseQuietly;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Yielder;
+import com.metamx.common.guava.YieldingAccumulator;
+
+/**
+ * Streams query results row by row instead of materializing them with Sequences.toList. Rows are pulled from
+ * the Sequence one at a time on caller thread, so a slow consumer slows down the scan rather than letting
+ * results pile up on heap, and a consumer can stop early : the Sequence is then closed, which stops the scan and
+ * releases its segments and processing buffers. A single segment query is scanned as rows are pulled (see
+ * {@link QueryHelper#run(io.druid.query.Query, io.druid.segment.Segment)}), so rows after the last one pulled are
+ * never computed.
+ * Druid 0.9.1 GroupBy is the exception : rows of a granularity bucket are aggregated (and merged across segments)
+ * before the first of them is returned. A Select query returns one result per page, so its page size bounds memory.
+ *
+ */
+public class QueryResults {
+	private static final ObjectMapper jsonMapper = new DefaultObjectMapper();
+
+	/**
+	 * Receives rows of a query one at a time.
+	 */
+	public interface RowCallback<T> {
+		/**
+		 * @return false to stop reading results
+		 */
+		boolean onRow(T row) throws IOException;
+	}
+
+	/**
+	 * Passes every row of results to callback until it returns false or results are exhausted.
+	 *
+	 * @return number of rows passed to callback
+	 * @throws IOException thrown by callback
+	 */
+	public static <T> long forEach(Sequence<T> results, RowCallback<? super T> callback) throws IOException {
+		return forEach(results, callback, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Same as {@link #forEach(Sequence, RowCallback)} for at most "limit" rows : no row is pulled from results
+	 * once limit is reached.
+	 */
+	private static <T> long forEach(Sequence<T> results, RowCallback<? super T> callback, long limit)
+			throws IOException {
+		if (limit <= 0) {
+			return 0;
+		}
+		Yielder<T> yielder = results.toYielder(null, new YieldingAccumulator<T, T>() {
+			@Override
+			public T accumulate(T accumulated, T in) {
+				yield();
+				return in;
+			}
+		});
+		long rows = 0;
+		try {
+			while (!yielder.isDone()) {
+				rows++;
+				if (!callback.onRow(yielder.get()) || rows >= limit) {
+					break;
+				}
+				yielder = yielder.next(null);
+			}
+		} finally {
+			CloseQuietly.close(yielder);
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes results to out as a JSON array, through Jackson streaming generator. Stream is flushed but not
+	 * closed.
+	 *
+	 * @return number of rows written
+	 */
+	public static long writeJson(Sequence<?> results, OutputStream out) throws IOException {
+		return write(results, out, jsonMapper, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Writes at most "limit" rows of results to out as an array, encoded by mapper (ex: a mapper created over
+	 * a Smile factory for a binary encoding).
+	 *
+	 * @return number of rows written
+	 */
+	@SuppressWarnings("unchecked")
+	public static long write(Sequence<?> results, OutputStream out, final ObjectMapper mapper, final long limit)
+			throws IOException {
+		// flushing is left to generator buffer, instead of once per row
+		final ObjectWriter writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		final JsonGenerator generator = mapper.getFactory().createGenerator(out);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		long written;
+		try {
+			generator.writeStartArray();
+			written = forEach((Sequence<Object>) results, new RowCallback<Object>() {
+				@Override
+				public boolean onRow(Object row) throws IOException {
+					writer.writeValue(generator, row);
+					return true;
+				}
+			}, limit);
+			generator.writeEndArray();
+		} finally {
+			generator.close();
+		}
+		return written;
+	}
+}
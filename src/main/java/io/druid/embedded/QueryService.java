@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.query.Query;
+import io.druid.segment.Segment;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Runs queries concurrently on a fixed number of worker threads, with admission control.
+ * Submitted queries wait in a queue ordered by their "priority" context value (highest first, then in
+ * submission order) and a worker takes the first one whose query type is below its concurrency limit.
+ * A query is rejected with RejectedExecutionException when the queue is full, or once it has waited more than
+ * maxQueueWaitMillis (even while all workers are busy), so that latency of admitted queries stays bounded under load.
+ * Number of workers is bounded by number of processing buffers (see {@link Utils#getBufferPool()}), so that an
+ * admitted query does not wait for a buffer held by another one.
+ * Segments of a query are processed on process wide processing executor (see {@link Utils#getProcessingExecutor()})
+ * while its worker waits for them, so that a cancelled or timed out query releases its worker at once.
+ *
+ */
+public class QueryService implements Closeable {
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("embedded-druid-query-queue-%d").build());
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private final int maxQueuedQueries;
+	private final long maxQueueWaitMillis;
+	private final Map<String, Integer> maxConcurrentQueries;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final TreeSet<Task<?>> queue = new TreeSet<Task<?>>(new Comparator<Task<?>>() {
+		@Override
+		public int compare(Task<?> t1, Task<?> t2) {
+			if (t1.priority != t2.priority) {
+				return t1.priority > t2.priority ? -1 : 1;
+			}
+			return t1.seq < t2.seq ? -1 : (t1.seq == t2.seq ? 0 : 1);
+		}
+	});
+	private final Map<String, Integer> running = new HashMap<String, Integer>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final AtomicLong seq = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private boolean closed;
+
+	private QueryService(int numThreads, int maxQueuedQueries, long maxQueueWaitMillis,
+			Map<String, Integer> maxConcurrentQueries) {
+		this.maxQueuedQueries = maxQueuedQueries;
+		this.maxQueueWaitMillis = maxQueueWaitMillis;
+		this.maxConcurrentQueries = Collections.unmodifiableMap(new HashMap<String, Integer>(maxConcurrentQueries));
+		for (int i = 0; i < numThreads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "embedded-druid-query-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	/**
+	 * Queues query on segments, results are merged and finalized as by {@link QueryHelper#run(Query, List)}.
+	 *
+	 * @return future of all result rows
+	 * @throws RejectedExecutionException if queue is full
+	 */
+	public <T> ListenableFuture<List<T>> submit(Query<T> query, final List<? extends Segment> segments) {
+		return submit(query, new QueryCallable<List<T>>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public List<T> call(Query<?> query) throws Exception {
+				return Sequences.toList(run(query, segments), new ArrayList<T>());
+			}
+		});
+	}
+
+	/**
+	 * Queues query on segments, its results are passed to callback on worker thread as by
+	 * {@link QueryResults#forEach(Sequence, QueryResults.RowCallback)}.
+	 *
+	 * @return future of number of rows passed to callback
+	 * @throws RejectedExecutionException if queue is full
+	 */
+	public <T> ListenableFuture<Long> submit(Query<T> query, final List<? extends Segment> segments,
+			final QueryResults.RowCallback<? super T> callback) {
+		return submit(query, new QueryCallable<Long>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Long call(Query<?> query) throws Exception {
+				return QueryResults.forEach((Sequence<T>) run(query, segments), callback);
+			}
+		});
+	}
+
+	private static Sequence<?> run(Query<?> query, List<? extends Segment> segments) {
+		return QueryHelper.run(query, segments);
+	}
+
+	private <V> ListenableFuture<V> submit(Query<?> query, QueryCallable<V> callable) {
+		final Task<V> task = new Task<V>(QueryHelper.withQueryId(query), callable, seq.getAndIncrement());
+		lock.lock();
+		try {
+			if (closed) {
+				throw reject(task, "Query service is closed");
+			}
+			if (queue.size() >= maxQueuedQueries) {
+				throw reject(task, String.format("Too many queued queries (%d)", queue.size()));
+			}
+			queue.add(task);
+			if (maxQueueWaitMillis != Long.MAX_VALUE) {
+				task.expiry = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire(task);
+					}
+				}, maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+			}
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+		task.future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (task.future.isCancelled()) {
+					cancelTask(task);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return task.future;
+	}
+
+	private RejectedExecutionException reject(Task<?> task, String reason) {
+		rejectedCount.incrementAndGet();
+		return new RejectedExecutionException(String.format("Query [%s] rejected : %s", task.query.getId(), reason));
+	}
+
+	/**
+	 * Rejects task if it is still queued once maxQueueWaitMillis has elapsed.
+	 */
+	private void expire(Task<?> task) {
+		boolean queued;
+		lock.lock();
+		try {
+			queued = queue.remove(task);
+		} finally {
+			lock.unlock();
+		}
+		if (queued) {
+			task.future.setException(reject(task,
+					String.format("waited more than %,d ms in queue", maxQueueWaitMillis)));
+		}
+	}
+
+	/**
+	 * Removes cancelled task from queue, or interrupts it if it is already running.
+	 */
+	private void cancelTask(Task<?> task) {
+		boolean queued;
+		lock.lock();
+		try {
+			queued = queue.remove(task);
+		} finally {
+			lock.unlock();
+		}
+		if (queued) {
+			task.cancelExpiry();
+		} else {
+			QueryHelper.cancel(task.query.getId());
+		}
+	}
+
+	/**
+	 * Cancels queued or running query with given id.
+	 *
+	 * @return false if no such query was submitted to this service and is still running
+	 */
+	public boolean cancel(String queryId) {
+		List<Task<?>> toCancel = new ArrayList<Task<?>>();
+		lock.lock();
+		try {
+			for (Task<?> task : queue) {
+				if (queryId.equals(task.query.getId())) {
+					toCancel.add(task);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Task<?> task : toCancel) {
+			task.future.cancel(false);
+		}
+		return QueryHelper.cancel(queryId) || !toCancel.isEmpty();
+	}
+
+	private void work() {
+		while (true) {
+			Task<?> task;
+			lock.lock();
+			try {
+				while ((task = poll()) == null) {
+					if (closed) {
+						return;
+					}
+					changed.await();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				task.run();
+			} finally {
+				lock.lock();
+				try {
+					running.put(task.type, running.get(task.type) - 1);
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				completedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Takes first queued task whose query type may run. Called under lock.
+	 */
+	private Task<?> poll() {
+		for (Iterator<Task<?>> it = queue.iterator(); it.hasNext();) {
+			Task<?> task = it.next();
+			Integer runningOfType = running.get(task.type);
+			Integer limit = maxConcurrentQueries.get(task.type);
+			if (limit != null && runningOfType != null && runningOfType >= limit) {
+				continue;
+			}
+			it.remove();
+			task.cancelExpiry();
+			running.put(task.type, runningOfType == null ? 1 : runningOfType + 1);
+			return task;
+		}
+		return null;
+	}
+
+	/**
+	 * Number of queries waiting for a worker.
+	 */
+	public int getQueuedCount() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of running queries of given type (ex: "groupBy").
+	 */
+	public int getRunningCount(String queryType) {
+		lock.lock();
+		try {
+			Integer count = running.get(queryType);
+			return count == null ? 0 : count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * Rejects queued queries and stops workers once running queries are complete.
+	 */
+	@Override
+	public void close() {
+		List<Task<?>> toReject;
+		lock.lock();
+		try {
+			closed = true;
+			toReject = new ArrayList<Task<?>>(queue);
+			queue.clear();
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Task<?> task : toReject) {
+			task.cancelExpiry();
+			task.future.setException(reject(task, "Query service is closed"));
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private Integer numThreads;
+		private int maxQueuedQueries = Integer.MAX_VALUE;
+		private long maxQueueWaitMillis = Long.MAX_VALUE;
+		private final Map<String, Integer> maxConcurrentQueries = new HashMap<String, Integer>();
+
+		/**
+		 * Number of worker threads, at most number of processing buffers. Defaults to "druid.processing.numThreads"
+		 * (number of cores by default) or to number of processing buffers if it is lower.
+		 */
+		public Builder withNumThreads(int numThreads) {
+			Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Builder withMaxQueuedQueries(int maxQueuedQueries) {
+			Preconditions.checkArgument(maxQueuedQueries >= 0, "maxQueuedQueries must not be negative");
+			this.maxQueuedQueries = maxQueuedQueries;
+			return this;
+		}
+
+		public Builder withMaxQueueWaitMillis(long maxQueueWaitMillis) {
+			Preconditions.checkArgument(maxQueueWaitMillis >= 0, "maxQueueWaitMillis must not be negative");
+			this.maxQueueWaitMillis = maxQueueWaitMillis;
+			return this;
+		}
+
+		/**
+		 * Limits number of queries of type (ex: "groupBy", see Query.getType()) running at the same time.
+		 */
+		public Builder withMaxConcurrentQueries(String queryType, int maxConcurrent) {
+			Preconditions.checkArgument(maxConcurrent > 0, "maxConcurrent must be positive");
+			maxConcurrentQueries.put(queryType, maxConcurrent);
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if numThreads is above number of processing buffers : queries admitted
+		 *             above it would wait for a buffer (or fail once its take timeout elapses) instead of in queue
+		 */
+		public QueryService build() {
+			int maxBuffers = Utils.getBufferPool().getMaxBuffers();
+			int threads = numThreads != null ? numThreads : Math.min(maxBuffers,
+					Integer.getInteger("druid.processing.numThreads", Runtime.getRuntime().availableProcessors()));
+			Preconditions.checkArgument(threads <= maxBuffers,
+					"numThreads (%s) must not exceed number of processing buffers (%s)", threads, maxBuffers);
+			return new QueryService(threads, maxQueuedQueries, maxQueueWaitMillis, maxConcurrentQueries);
+		}
+	}
+
+	private interface QueryCallable<V> {
+		V call(Query<?> query) throws Exception;
+	}
+
+	private static class Task<V> {
+		private final Query<?> query;
+		private final String type;
+		private final int priority;
+		private final long seq;
+		private final QueryCallable<V> callable;
+		private final SettableFuture<V> future = SettableFuture.create();
+		private ScheduledFuture<?> expiry;
+
+		Task(Query<?> query, QueryCallable<V> callable, long seq) {
+			this.query = query;
+			this.type = query.getType();
+			this.priority = query.getContextPriority(0);
+			this.seq = seq;
+			this.callable = callable;
+		}
+
+		/**
+		 * Called once task has left queue.
+		 */
+		void cancelExpiry() {
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+		}
+
+		void run() {
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.set(callable.call(query));
+			} catch (Throwable t) {
+				future.setException(t);
+			}
+		}
+	}
+}
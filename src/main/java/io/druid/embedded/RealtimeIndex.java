@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.InputRow;
+import io.druid.query.Query;
+import io.druid.segment.IncrementalIndexSegment;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.ReferenceCountingSegment;
+import io.druid.segment.Segment;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import io.druid.segment.incremental.IndexSizeExceededException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.ISE;
+import com.metamx.common.guava.CloseQuietly;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import com.metamx.common.logger.Logger;
+
+/**
+ * Index fed row by row, which can be queried while rows are added. Rows go to a live IncrementalIndex;
+ * once it holds "maxRowsInMemory" rows (or it is older than "persistPeriodMillis", see {@link IngestionConfig},
+ * which is also checked periodically so that an idle stream is handed off too), it is handed off : persisted in
+ * background under a directory of baseDir with a unique name and swapped with the resulting immutable segment.
+ * Queries cover live index, indexes being persisted and persisted segments.
+ *
+ */
+public class RealtimeIndex implements Closeable {
+	private static final Logger log = new Logger(RealtimeIndex.class);
+	/**
+	 * Hand-off waits for oldest persist once that many indexes are being persisted, to bound memory.
+	 */
+	static final int MAX_PENDING_PERSISTS = 2;
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("embedded-druid-realtime-persist-%d").build());
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private final IncrementalIndexSchema schema;
+	private final IngestionConfig config;
+	private final File baseDir;
+	private final long minTimestamp;
+	private final IngestionStats stats = new IngestionStats();
+
+	private IncrementalIndex<?> liveIndex;
+	private ReferenceCountingSegment liveSegment;
+	private long liveStartMillis;
+	private int liveId = -1;
+	private final Map<ReferenceCountingSegment, ListenableFuture<QueryableIndex>> persisting =
+			new LinkedHashMap<ReferenceCountingSegment, ListenableFuture<QueryableIndex>>();
+	private final List<ReferenceCountingSegment> persisted = new ArrayList<ReferenceCountingSegment>();
+	private Throwable persistFailure;
+	private boolean closed;
+	private final ScheduledFuture<?> periodCheck;
+
+	public RealtimeIndex(IncrementalIndexSchema schema, IngestionConfig config, File baseDir) {
+		this.schema = Preconditions.checkNotNull(schema, "schema");
+		this.config = Preconditions.checkNotNull(config, "config");
+		this.baseDir = Preconditions.checkNotNull(baseDir, "baseDir");
+		this.minTimestamp = IndexHelper.getMinTimestamp(schema, config);
+		newLiveIndex();
+		long period = config.getPersistPeriodMillis();
+		if (period == Long.MAX_VALUE) {
+			periodCheck = null;
+		} else {
+			long checkMillis = Math.min(period, 1000);
+			periodCheck = timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkPersistPeriod();
+				}
+			}, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Adds row to live index, handing it off if a threshold is reached. Rows older than minTimestamp are dropped.
+	 *
+	 * @throws ISE if a previous background persist failed
+	 */
+	public synchronized void add(InputRow row) {
+		Preconditions.checkState(!closed, "index is closed");
+		if (persistFailure != null) {
+			throw new ISE(persistFailure, "Persist of realtime index failed");
+		}
+		try {
+			IndexHelper.addRow(liveIndex, row, minTimestamp, stats);
+		} catch (IndexSizeExceededException e) {
+			throw Throwables.propagate(e);
+		}
+		if (liveIndex.size() >= config.getMaxRowsInMemory() || isPersistPeriodElapsed()) {
+			handoff();
+		}
+	}
+
+	private boolean isPersistPeriodElapsed() {
+		return System.currentTimeMillis() - liveStartMillis >= config.getPersistPeriodMillis();
+	}
+
+	/**
+	 * Runs on timer, hands off live index once persist period has elapsed even if no row arrives.
+	 */
+	private synchronized void checkPersistPeriod() {
+		if (closed || persistFailure != null || liveIndex.isEmpty() || !isPersistPeriodElapsed()) {
+			return;
+		}
+		try {
+			handoff();
+		} catch (RuntimeException e) {
+			log.error(e, "Failed to hand off realtime index of [%s]", baseDir);
+		}
+	}
+
+	/**
+	 * Hands off live index if it is not empty.
+	 *
+	 * @return future completing once all indexes handed off so far are persisted and swapped
+	 */
+	public synchronized ListenableFuture<List<QueryableIndex>> persist() {
+		Preconditions.checkState(!closed, "index is closed");
+		if (!liveIndex.isEmpty()) {
+			handoff();
+		}
+		return Futures.allAsList(persisting.values());
+	}
+
+	private void handoff() {
+		waitForPendingPersists(MAX_PENDING_PERSISTS - 1);
+		final IncrementalIndex<?> index = liveIndex;
+		final ReferenceCountingSegment segment = liveSegment;
+		// unique, so that indexes of other instances (or previous runs) on same baseDir are never overwritten
+		final File dir = new File(baseDir, String.format("persist-%d-%s", liveStartMillis, UUID.randomUUID()));
+		stats.addStoredRows(index.size());
+		newLiveIndex();
+
+		ListenableFuture<QueryableIndex> future = IndexHelper.persistInBackground(index, dir, config.getIndexSpec());
+		persisting.put(segment, future);
+		Futures.addCallback(future, new FutureCallback<QueryableIndex>() {
+			@Override
+			public void onSuccess(QueryableIndex result) {
+				ReferenceCountingSegment persistedSegment =
+						new ReferenceCountingSegment(new QueryableIndexSegment(dir.getName(), result));
+				synchronized (RealtimeIndex.this) {
+					persisting.remove(segment);
+					if (closed) {
+						CloseQuietly.close(persistedSegment);
+					} else {
+						persisted.add(persistedSegment);
+					}
+					RealtimeIndex.this.notifyAll();
+				}
+				// IncrementalIndex is closed once queries running on it complete
+				CloseQuietly.close(segment);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				log.error(t, "Failed to persist realtime index to [%s]", dir);
+				synchronized (RealtimeIndex.this) {
+					// index stays queryable in memory, but no more rows are accepted
+					persistFailure = t;
+					RealtimeIndex.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	private void newLiveIndex() {
+		liveIndex = IndexHelper.newIncrementalIndex(schema, config);
+		liveSegment = new ReferenceCountingSegment(new IncrementalIndexSegment(liveIndex, "live-" + ++liveId));
+		liveStartMillis = System.currentTimeMillis();
+	}
+
+	private void waitForPendingPersists(int maxPending) {
+		while (persisting.size() > maxPending && persistFailure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw Throwables.propagate(e);
+			}
+		}
+	}
+
+	/**
+	 * Runs query on live index and all handed off indexes. They can not be closed until returned Sequence is fully
+	 * consumed or closed.
+	 */
+	public Sequence run(Query query) {
+		final List<Closeable> references = new ArrayList<Closeable>();
+		List<Segment> segments = new ArrayList<Segment>();
+		synchronized (this) {
+			Preconditions.checkState(!closed, "index is closed");
+			List<ReferenceCountingSegment> all = new ArrayList<ReferenceCountingSegment>(persisted);
+			all.addAll(persisting.keySet());
+			all.add(liveSegment);
+			for (ReferenceCountingSegment segment : all) {
+				Closeable reference = segment.increment();
+				if (reference != null) {
+					references.add(reference);
+					segments.add(segment);
+				}
+			}
+		}
+		return Sequences.withBaggage(QueryHelper.run(query, segments), new Closeable() {
+			@Override
+			public void close() {
+				for (Closeable reference : references) {
+					CloseQuietly.close(reference);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Number of rows in live index.
+	 */
+	public synchronized int getLiveRowCount() {
+		return liveIndex.size();
+	}
+
+	/**
+	 * Row counts of ingestion, stored rows are only counted once live index is handed off.
+	 */
+	public IngestionStats getIngestionStats() {
+		return stats;
+	}
+
+	public synchronized int getNumPersisting() {
+		return persisting.size();
+	}
+
+	public synchronized int getNumPersisted() {
+		return persisted.size();
+	}
+
+	/**
+	 * Waits for pending persists and closes all indexes. Persisted segment directories are kept under baseDir.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (periodCheck != null) {
+			periodCheck.cancel(false);
+		}
+		try {
+			waitForPendingPersists(0);
+		} finally {
+			for (ReferenceCountingSegment segment : persisting.keySet()) {
+				CloseQuietly.close(segment);
+			}
+			for (ReferenceCountingSegment segment : persisted) {
+				CloseQuietly.close(segment);
+			}
+			CloseQuietly.close(liveSegment);
+		}
+		if (persistFailure != null) {
+			throw new IOException("Persist of realtime index failed", persistFailure);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.segment.Cursor;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.Segment;
+import io.druid.segment.StorageAdapter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Interval;
+
+import com.google.common.base.Function;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Segment whose cursors notify listeners every time they advance, on the scanning thread, so that a running scan
+ * can be measured (rows scanned) or stopped (a listener throwing, ex: once query is cancelled, makes the engine
+ * fail and release its processing buffer). Storage adapter and cursors are wrapped through dynamic proxies, so
+ * that every other method (and selectors) goes to the base segment as it is.
+ * Engines reading QueryableIndex directly (Search, SegmentMetadata) do not go through cursors and are not seen.
+ * Wrapper lives for one query : close() leaves base segment open.
+ *
+ */
+public class ScanListeningSegment implements Segment {
+	/**
+	 * Called before a cursor advances, may throw to stop the scan.
+	 */
+	public interface ScanListener {
+		void onAdvance();
+	}
+
+	private final Segment base;
+	private final ScanListener[] listeners;
+
+	private ScanListeningSegment(Segment base, ScanListener[] listeners) {
+		this.base = base;
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Wraps segment, listeners of an already wrapped segment are kept (and called first) so that cursors are only
+	 * wrapped once.
+	 */
+	public static Segment listen(Segment segment, ScanListener listener) {
+		List<ScanListener> listeners = new ArrayList<ScanListener>();
+		if (segment instanceof ScanListeningSegment) {
+			ScanListeningSegment listening = (ScanListeningSegment) segment;
+			for (ScanListener previous : listening.listeners) {
+				listeners.add(previous);
+			}
+			segment = listening.base;
+		}
+		listeners.add(listener);
+		return new ScanListeningSegment(segment, listeners.toArray(new ScanListener[listeners.size()]));
+	}
+
+	@Override
+	public String getIdentifier() {
+		return base.getIdentifier();
+	}
+
+	@Override
+	public Interval getDataInterval() {
+		return base.getDataInterval();
+	}
+
+	@Override
+	public QueryableIndex asQueryableIndex() {
+		return base.asQueryableIndex();
+	}
+
+	@Override
+	public StorageAdapter asStorageAdapter() {
+		final StorageAdapter adapter = base.asStorageAdapter();
+		if (adapter == null) {
+			return null;
+		}
+		return proxy(StorageAdapter.class, new InvocationHandler() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Object result = invokeBase(adapter, method, args);
+				if ("makeCursors".equals(method.getName())) {
+					return Sequences.map((Sequence<Cursor>) result, new Function<Cursor, Cursor>() {
+						@Override
+						public Cursor apply(Cursor cursor) {
+							return listen(cursor);
+						}
+					});
+				}
+				return result;
+			}
+		});
+	}
+
+	private Cursor listen(final Cursor cursor) {
+		return proxy(Cursor.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("advance".equals(name) || "advanceTo".equals(name)) {
+					for (ScanListener listener : listeners) {
+						listener.onAdvance();
+					}
+				}
+				return invokeBase(cursor, method, args);
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(ScanListeningSegment.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+	private static Object invokeBase(Object base, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(base, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Base segment is owned by caller.
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.embedded.load.Loader;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.metamx.common.logger.Logger;
+
+/**
+ * Persistent cache of segments under cacheDir. A segment directory is named after a hash of the fingerprint of
+ * its input (see {@link Loader#getFingerprint()}) and of the schema and format it was built with, so that a
+ * later run on same input loads (memory maps) existing segment instead of building it again.
+ * Segments are built in a temporary directory and renamed atomically once complete. Least recently used
+ * segments are deleted when total size exceeds maxBytes; a deleted segment stays readable by indexes
+ * which already mapped it.
+ *
+ */
+public class SegmentCache {
+	private static final Logger log = new Logger(SegmentCache.class);
+	private static final String TMP_PREFIX = ".tmp-";
+	/**
+	 * Temporary directories left by a crashed process are removed once they are that old.
+	 */
+	private static final long TMP_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final File cacheDir;
+	private final long maxBytes;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public SegmentCache(File cacheDir, long maxBytes) throws IOException {
+		Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+		FileUtils.forceMkdir(cacheDir);
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Same as {@link #getQueryableIndex(List, IncrementalIndexSchema, IngestionConfig)} with default config.
+	 */
+	public QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema) throws IOException {
+		return getQueryableIndex(Collections.singletonList(loader), indexSchema, IngestionConfig.DEFAULT);
+	}
+
+	/**
+	 * Loads cached segment of loaders if any, otherwise builds it through
+	 * {@link IndexHelper#getQueryableIndex(List, IncrementalIndexSchema, IngestionConfig)} and keeps it in cache.
+	 * Loaders without fingerprint are built as usual, without caching.
+	 */
+	public QueryableIndex getQueryableIndex(List<? extends Loader> loaders, IncrementalIndexSchema indexSchema,
+			IngestionConfig config) throws IOException {
+		String key = getKey(loaders, indexSchema, config);
+		if (key == null) {
+			log.info("Input of %s has no fingerprint, segment is not cached", loaders);
+			return IndexHelper.getQueryableIndex(loaders, indexSchema, config);
+		}
+		File segmentDir = new File(cacheDir, key);
+		QueryableIndex index = load(segmentDir);
+		if (index != null) {
+			hitCount.incrementAndGet();
+			return index;
+		}
+		missCount.incrementAndGet();
+
+		File tmpDir = new File(cacheDir, TMP_PREFIX + key + "-" + UUID.randomUUID());
+		try {
+			IndexHelper.getQueryableIndex(loaders, indexSchema, config, new IngestionStats(), tmpDir).close();
+			try {
+				Files.move(tmpDir.toPath(), segmentDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// same segment built concurrently, keep existing one
+				if (!segmentDir.isDirectory()) {
+					throw e;
+				}
+			}
+		} finally {
+			FileUtils.deleteQuietly(tmpDir);
+		}
+		gc(segmentDir);
+		return IndexHelper.getQueryableIndex(segmentDir);
+	}
+
+	/**
+	 * Loads segment if it is in cache, and marks it as recently used. Unreadable segment is deleted.
+	 */
+	private QueryableIndex load(File segmentDir) {
+		if (!segmentDir.isDirectory()) {
+			return null;
+		}
+		try {
+			QueryableIndex index = IndexHelper.getQueryableIndex(segmentDir);
+			segmentDir.setLastModified(System.currentTimeMillis());
+			return index;
+		} catch (IOException | RuntimeException e) {
+			log.warn(e, "Deleting unreadable cached segment [%s]", segmentDir);
+			FileUtils.deleteQuietly(segmentDir);
+			return null;
+		}
+	}
+
+	/**
+	 * Cache key of loaders built with schema and config, null if a loader has no fingerprint.
+	 */
+	String getKey(List<? extends Loader> loaders, IncrementalIndexSchema indexSchema, IngestionConfig config)
+			throws IOException {
+		IncrementalIndexSchema schema = IndexHelper.getIndexSchema(indexSchema, config);
+		Hasher hasher = Hashing.sha1().newHasher();
+		for (Loader loader : loaders) {
+			String fingerprint = loader.getFingerprint();
+			if (fingerprint == null) {
+				return null;
+			}
+			hasher.putString(fingerprint, Charsets.UTF_8);
+		}
+		hasher.putString(IndexHelper.objectMapper.writeValueAsString(Arrays.asList(
+				schema.getMinTimestamp(),
+				schema.getGran(),
+				schema.getDimensionsSpec(),
+				schema.getMetrics(),
+				config.getIndexSpec())), Charsets.UTF_8);
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * Deletes least recently used segments until cache fits in maxBytes, and stale temporary directories.
+	 */
+	public void gc() {
+		gc(null);
+	}
+
+	private synchronized void gc(File keep) {
+		File[] dirs = cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory();
+			}
+		});
+		if (dirs == null) {
+			return;
+		}
+		List<File> segments = new ArrayList<File>();
+		long now = System.currentTimeMillis();
+		for (File dir : dirs) {
+			if (!dir.getName().startsWith(TMP_PREFIX)) {
+				segments.add(dir);
+			} else if (now - dir.lastModified() > TMP_MAX_AGE_MILLIS) {
+				FileUtils.deleteQuietly(dir);
+			}
+		}
+		Collections.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Longs.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		long total = 0;
+		long[] sizes = new long[segments.size()];
+		for (int i = 0; i < segments.size(); i++) {
+			sizes[i] = FileUtils.sizeOfDirectory(segments.get(i));
+			total += sizes[i];
+		}
+		for (int i = 0; i < segments.size() && total > maxBytes; i++) {
+			File segment = segments.get(i);
+			if (segment.equals(keep)) {
+				continue;
+			}
+			log.info("Evicting cached segment [%s] (%,d bytes)", segment, sizes[i]);
+			FileUtils.deleteQuietly(segment);
+			total -= sizes[i];
+		}
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public long getSizeBytes() {
+		return FileUtils.sizeOfDirectory(cacheDir);
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+}
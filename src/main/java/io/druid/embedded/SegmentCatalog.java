@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.query.Query;
+import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.ReferenceCountingSegment;
+import io.druid.segment.Segment;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.Interval;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.metamx.common.ISE;
+import com.metamx.common.guava.CloseQuietly;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Catalog of persisted segments, registered by datasource and interval. Segment directories are loaded
+ * through IndexIO only when a query first needs them, and at most "maxOpenSegments" of them are kept open;
+ * least recently used segment is closed (once queries running on it complete) when limit is exceeded.
+ *
+ */
+public class SegmentCatalog implements Closeable {
+	private final int maxOpenSegments;
+	private final Map<String, List<SegmentEntry>> dataSources = Maps.newHashMap();
+	private final LinkedHashMap<SegmentEntry, ReferenceCountingSegment> openSegments =
+			new LinkedHashMap<SegmentEntry, ReferenceCountingSegment>(16, 0.75f, true);
+	private long loadCount;
+	private long evictionCount;
+
+	public SegmentCatalog(int maxOpenSegments) {
+		Preconditions.checkArgument(maxOpenSegments > 0, "maxOpenSegments must be positive");
+		this.maxOpenSegments = maxOpenSegments;
+	}
+
+	/**
+	 * Registers segment directory holding data of dataSource for interval. Nothing is loaded yet.
+	 */
+	public synchronized void register(String dataSource, Interval interval, File indexDir) {
+		List<SegmentEntry> entries = dataSources.get(dataSource);
+		if (entries == null) {
+			entries = new ArrayList<SegmentEntry>();
+			dataSources.put(dataSource, entries);
+		}
+		entries.add(new SegmentEntry(dataSource, interval, indexDir));
+	}
+
+	/**
+	 * Removes segment directory from catalog, closing it if it is open.
+	 */
+	public synchronized void unregister(String dataSource, File indexDir) {
+		List<SegmentEntry> entries = dataSources.get(dataSource);
+		if (entries == null) {
+			return;
+		}
+		Iterator<SegmentEntry> it = entries.iterator();
+		while (it.hasNext()) {
+			SegmentEntry entry = it.next();
+			if (entry.indexDir.equals(indexDir)) {
+				it.remove();
+				ReferenceCountingSegment segment = openSegments.remove(entry);
+				if (segment != null) {
+					CloseQuietly.close(segment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs query on registered segments of query datasource which overlap query intervals. Segments are
+	 * loaded if needed and can not be closed until returned Sequence is fully consumed or closed.
+	 */
+	@SuppressWarnings("unchecked")
+	public Sequence run(Query query) {
+		String dataSource = Iterables.getOnlyElement(query.getDataSource().getNames());
+		List<Interval> intervals = query.getIntervals();
+		final List<Closeable> references = new ArrayList<Closeable>();
+		List<Segment> segments = new ArrayList<Segment>();
+		try {
+			for (SegmentEntry entry : getEntries(dataSource)) {
+				if (!entry.overlaps(intervals)) {
+					continue;
+				}
+				ReferenceCountingSegment segment = acquire(entry, references);
+				segments.add(segment);
+			}
+		} catch (IOException | RuntimeException e) {
+			release(references);
+			throw Throwables.propagate(e);
+		}
+		return Sequences.withBaggage(QueryHelper.run(query, segments), new Closeable() {
+			@Override
+			public void close() {
+				release(references);
+			}
+		});
+	}
+
+	private synchronized List<SegmentEntry> getEntries(String dataSource) {
+		List<SegmentEntry> entries = dataSources.get(dataSource);
+		return entries == null ? new ArrayList<SegmentEntry>() : Lists.newArrayList(entries);
+	}
+
+	/**
+	 * Returns open segment of entry (loading it if needed) after taking a reference on it.
+	 */
+	private synchronized ReferenceCountingSegment acquire(SegmentEntry entry, List<Closeable> references)
+			throws IOException {
+		ReferenceCountingSegment segment = openSegments.get(entry);
+		if (segment == null) {
+			segment = new ReferenceCountingSegment(
+					new QueryableIndexSegment(entry.getIdentifier(), IndexHelper.getQueryableIndex(entry.indexDir)));
+			loadCount++;
+			openSegments.put(entry, segment);
+		}
+		Closeable reference = segment.increment();
+		if (reference == null) {
+			throw new ISE("Segment [%s] is closed", entry.getIdentifier());
+		}
+		references.add(reference);
+		evict();
+		return segment;
+	}
+
+	private void evict() {
+		Iterator<ReferenceCountingSegment> lru = openSegments.values().iterator();
+		while (openSegments.size() > maxOpenSegments) {
+			ReferenceCountingSegment segment = lru.next();
+			lru.remove();
+			evictionCount++;
+			// actual close is deferred until running queries release segment
+			CloseQuietly.close(segment);
+		}
+	}
+
+	private static void release(List<Closeable> references) {
+		for (Closeable reference : references) {
+			CloseQuietly.close(reference);
+		}
+		references.clear();
+	}
+
+	public synchronized int getNumOpenSegments() {
+		return openSegments.size();
+	}
+
+	public synchronized long getLoadCount() {
+		return loadCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized void close() {
+		for (ReferenceCountingSegment segment : openSegments.values()) {
+			CloseQuietly.close(segment);
+		}
+		openSegments.clear();
+		dataSources.clear();
+	}
+
+	private static class SegmentEntry {
+		final String dataSource;
+		final Interval interval;
+		final File indexDir;
+
+		SegmentEntry(String dataSource, Interval interval, File indexDir) {
+			this.dataSource = dataSource;
+			this.interval = interval;
+			this.indexDir = indexDir;
+		}
+
+		String getIdentifier() {
+			return dataSource + "_" + interval + "_" + indexDir.getName();
+		}
+
+		boolean overlaps(List<Interval> intervals) {
+			for (Interval queryInterval : intervals) {
+				if (queryInterval.overlaps(interval)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
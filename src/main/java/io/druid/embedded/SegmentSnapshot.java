@@ -0,0 +1,406 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.impl.DimensionsSpec;
+import io.druid.granularity.QueryGranularity;
+import io.druid.jackson.DefaultObjectMapper;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.histogram.ApproximateHistogramDruidModule;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.metamx.common.logger.Logger;
+
+/**
+ * Persisted segment packaged as a single file, to build a segment once and ship it to other hosts.
+ * File layout : magic, format version, length of JSON header, header (schema, row count, interval and offset,
+ * length and CRC32 of every segment file), CRC32 of header, then content of segment files.
+ * {@link #load(File)} verifies checksums and memory maps smoosh chunks directly from snapshot file : a directory
+ * is created with symbolic links to snapshot file and a "meta.smoosh" whose offsets point into it, so that no
+ * column data is copied (chunks are copied instead if links are not supported, or if snapshot exceeds 2GB).
+ *
+ */
+public class SegmentSnapshot {
+	private static final Logger log = new Logger(SegmentSnapshot.class);
+	public static final int FORMAT_VERSION = 1;
+	private static final byte[] MAGIC = "EDSNAPSH".getBytes(Charsets.US_ASCII);
+	private static final Pattern CHUNK_FILE = Pattern.compile("\\d{5}\\.smoosh");
+	private static final String META_FILE = "meta.smoosh";
+	/**
+	 * Written in every directory created by load(), which is the only kind of non empty directory load() replaces.
+	 */
+	private static final String MARKER_FILE = ".segment-snapshot";
+	private static final ObjectMapper mapper = new DefaultObjectMapper();
+
+	static {
+		// approximate histogram aggregators of schema (handled by Guice in Druid system)
+		for (Module module : new ApproximateHistogramDruidModule().getJacksonModules()) {
+			mapper.registerModule(module);
+		}
+	}
+
+	private final File file;
+	private final Header header;
+	private final long dataStart;
+
+	private SegmentSnapshot(File file, Header header, long dataStart) {
+		this.file = file;
+		this.header = header;
+		this.dataStart = dataStart;
+	}
+
+	/**
+	 * Writes segment of indexDir (ex: built by {@link IndexHelper#getQueryableIndex(java.util.List,
+	 * IncrementalIndexSchema, IngestionConfig)}) and schema it was built with into snapshotFile. File is
+	 * written under a temporary name and renamed once complete.
+	 */
+	public static SegmentSnapshot write(File indexDir, IncrementalIndexSchema schema, File snapshotFile)
+			throws IOException {
+		Header header = new Header();
+		header.formatVersion = FORMAT_VERSION;
+		header.minTimestamp = schema.getMinTimestamp();
+		header.queryGranularity = schema.getGran();
+		header.dimensionsSpec = schema.getDimensionsSpec();
+		header.metrics = schema.getMetrics();
+		QueryableIndex index = IndexHelper.getQueryableIndex(indexDir);
+		try {
+			header.numRows = index.getNumRows();
+			header.interval = index.getDataInterval().toString();
+		} finally {
+			index.close();
+		}
+		File[] files = indexDir.listFiles();
+		if (files == null) {
+			throw new IOException(String.format("Can not list segment files of [%s]", indexDir));
+		}
+		Arrays.sort(files);
+		long offset = 0;
+		for (File segmentFile : files) {
+			if (!segmentFile.isFile()) {
+				continue;
+			}
+			FileEntry entry = new FileEntry();
+			entry.name = segmentFile.getName();
+			entry.offset = offset;
+			entry.length = segmentFile.length();
+			entry.crc32 = crc32(segmentFile);
+			header.files.put(entry.name, entry);
+			offset += entry.length;
+		}
+
+		File tmpFile = new File(snapshotFile.getPath() + ".tmp-" + UUID.randomUUID());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile))) {
+				byte[] headerBytes = mapper.writeValueAsBytes(header);
+				CRC32 headerCrc = new CRC32();
+				headerCrc.update(headerBytes);
+				out.write(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(headerBytes.length);
+				out.write(headerBytes);
+				out.writeLong(headerCrc.getValue());
+				for (FileEntry entry : header.files.values()) {
+					copy(new File(indexDir, entry.name), out);
+				}
+			}
+			Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			FileUtils.deleteQuietly(tmpFile);
+		}
+		log.info("Wrote snapshot [%s] of [%s] : %,d rows, %,d bytes", snapshotFile, indexDir, header.numRows,
+				snapshotFile.length());
+		return read(snapshotFile);
+	}
+
+	/**
+	 * Reads and checks header of snapshot, segment files are only read by {@link #load(File)}.
+	 *
+	 * @throws IOException if file is not a snapshot, its format version is not supported or header is corrupted
+	 */
+	public static SegmentSnapshot read(File snapshotFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(snapshotFile))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(String.format("[%s] is not a segment snapshot", snapshotFile));
+			}
+			int formatVersion = in.readInt();
+			if (formatVersion != FORMAT_VERSION) {
+				throw new IOException(String.format("Unsupported format version [%d] of snapshot [%s]",
+						formatVersion, snapshotFile));
+			}
+			int headerLength = in.readInt();
+			byte[] headerBytes = new byte[headerLength];
+			in.readFully(headerBytes);
+			CRC32 headerCrc = new CRC32();
+			headerCrc.update(headerBytes);
+			if (in.readLong() != headerCrc.getValue()) {
+				throw new IOException(String.format("Corrupted header of snapshot [%s]", snapshotFile));
+			}
+			Header header = mapper.readValue(headerBytes, Header.class);
+			long dataStart = MAGIC.length + 4 + 4 + headerLength + 8;
+			long expectedLength = dataStart;
+			for (FileEntry entry : header.files.values()) {
+				expectedLength = Math.max(expectedLength, dataStart + entry.offset + entry.length);
+			}
+			if (snapshotFile.length() != expectedLength) {
+				throw new IOException(String.format("Truncated snapshot [%s] : %,d bytes instead of %,d",
+						snapshotFile, snapshotFile.length(), expectedLength));
+			}
+			return new SegmentSnapshot(snapshotFile, header, dataStart);
+		}
+	}
+
+	/**
+	 * Same as {@link #load(File, boolean)} with checksum verification.
+	 */
+	public QueryableIndex load(File indexDir) throws IOException {
+		return load(indexDir, true);
+	}
+
+	/**
+	 * Loads segment through indexDir, which is filled with links to snapshot file (and small metadata files).
+	 * indexDir must be absent, empty or a directory created by a previous load(), which is then replaced.
+	 * Snapshot file must not be modified or deleted while returned index is open.
+	 *
+	 * @param verifyChecksums : if true, every segment file is read to check its CRC32 first (which also loads
+	 *            it in page cache)
+	 * @throws IOException if a checksum does not match, or if indexDir holds other files
+	 */
+	public QueryableIndex load(File indexDir, boolean verifyChecksums) throws IOException {
+		if (verifyChecksums) {
+			verify();
+		}
+		prepareDir(indexDir);
+		// chunks can be mapped in place as long as all offsets fit in an int, as required by meta.smoosh
+		boolean mapInPlace = file.length() <= Integer.MAX_VALUE;
+		Map<Integer, Long> chunkShifts = new HashMap<Integer, Long>();
+		for (FileEntry entry : header.files.values()) {
+			if (entry.name.equals(META_FILE)) {
+				continue;
+			}
+			File target = new File(indexDir, entry.name);
+			if (mapInPlace && CHUNK_FILE.matcher(entry.name).matches() && link(target)) {
+				chunkShifts.put(Integer.parseInt(entry.name.substring(0, 5)), dataStart + entry.offset);
+			} else {
+				copy(entry, target);
+			}
+		}
+		FileEntry meta = header.files.get(META_FILE);
+		if (meta == null) {
+			throw new IOException(String.format("Snapshot [%s] has no %s", file, META_FILE));
+		}
+		writeMeta(meta, chunkShifts, new File(indexDir, META_FILE));
+		return IndexHelper.getQueryableIndex(indexDir);
+	}
+
+	/**
+	 * Empties indexDir only if load() created it, so that a caller directory is never deleted by mistake.
+	 */
+	private static void prepareDir(File indexDir) throws IOException {
+		String[] names = indexDir.list();
+		if (names != null && names.length > 0) {
+			if (!new File(indexDir, MARKER_FILE).isFile()) {
+				throw new IOException(String.format(
+						"Can not load snapshot into [%s] : directory is not empty and was not created by a snapshot",
+						indexDir));
+			}
+			FileUtils.deleteDirectory(indexDir);
+		}
+		FileUtils.forceMkdir(indexDir);
+		FileUtils.touch(new File(indexDir, MARKER_FILE));
+	}
+
+	/**
+	 * Checks CRC32 of every segment file.
+	 *
+	 * @throws IOException if a checksum does not match
+	 */
+	public void verify() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			byte[] bytes = new byte[64 * 1024];
+			for (FileEntry entry : header.files.values()) {
+				CRC32 crc = new CRC32();
+				// segment files (smoosh chunks) are at most 2GB each
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + entry.offset, entry.length);
+				while (buffer.hasRemaining()) {
+					int length = Math.min(bytes.length, buffer.remaining());
+					buffer.get(bytes, 0, length);
+					crc.update(bytes, 0, length);
+				}
+				if (crc.getValue() != entry.crc32) {
+					throw new IOException(String.format("Checksum mismatch of [%s] in snapshot [%s]", entry.name, file));
+				}
+			}
+		}
+	}
+
+	private boolean link(File target) {
+		try {
+			Files.createSymbolicLink(target.toPath(), file.getAbsoluteFile().toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			log.info("Can not link [%s] to snapshot [%s], copying it : %s", target, file, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Writes meta.smoosh with offsets of linked chunks shifted to their position in snapshot file.
+	 */
+	private void writeMeta(FileEntry meta, Map<Integer, Long> chunkShifts, File target) throws IOException {
+		MappedByteBuffer buffer = map(meta);
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		String[] lines = new String(bytes, Charsets.UTF_8).split("\n");
+		List<String> shifted = new ArrayList<String>();
+		// first line is "v1,maxChunkSize,numChunks", then "name,chunk,start,end" per entry
+		for (int i = 0; i < lines.length; i++) {
+			String[] fields = lines[i].split(",");
+			Long shift = i == 0 || fields.length != 4 ? null : chunkShifts.get(Integer.parseInt(fields[1]));
+			if (shift == null) {
+				shifted.add(lines[i]);
+			} else {
+				shifted.add(String.format("%s,%s,%d,%d", fields[0], fields[1], Long.parseLong(fields[2]) + shift,
+						Long.parseLong(fields[3]) + shift));
+			}
+		}
+		FileUtils.writeLines(target, Charsets.UTF_8.name(), shifted, "\n");
+	}
+
+	private MappedByteBuffer map(FileEntry entry) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, dataStart + entry.offset, entry.length);
+		}
+	}
+
+	private void copy(FileEntry entry, File target) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileOutputStream out = new FileOutputStream(target)) {
+			FileChannel channel = raf.getChannel();
+			long position = dataStart + entry.offset;
+			long end = position + entry.length;
+			while (position < end) {
+				position += channel.transferTo(position, end - position, out.getChannel());
+			}
+		}
+	}
+
+	private static void copy(File source, OutputStream out) throws IOException {
+		try (FileInputStream in = new FileInputStream(source)) {
+			ByteStreams.copy(in, out);
+		}
+	}
+
+	private static long crc32(File source) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		try (FileInputStream in = new FileInputStream(source)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, read);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Schema segment was built with.
+	 */
+	public IncrementalIndexSchema getSchema() {
+		return new IncrementalIndexSchema(header.minTimestamp, header.queryGranularity, header.dimensionsSpec,
+				header.metrics);
+	}
+
+	public int getNumRows() {
+		return header.numRows;
+	}
+
+	/**
+	 * Interval of data of segment (ISO 8601).
+	 */
+	public String getInterval() {
+		return header.interval;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	static class Header {
+		@JsonProperty
+		int formatVersion;
+		@JsonProperty
+		long minTimestamp;
+		@JsonProperty
+		QueryGranularity queryGranularity;
+		@JsonProperty
+		DimensionsSpec dimensionsSpec;
+		@JsonProperty
+		AggregatorFactory[] metrics;
+		@JsonProperty
+		int numRows;
+		@JsonProperty
+		String interval;
+		@JsonProperty
+		Map<String, FileEntry> files = new LinkedHashMap<String, FileEntry>();
+	}
+
+	static class FileEntry {
+		@JsonProperty
+		String name;
+		@JsonProperty
+		long offset;
+		@JsonProperty
+		long length;
+		@JsonProperty
+		long crc32;
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.query.Query;
+import io.druid.query.QueryContextKeys;
+import io.druid.query.QueryInterruptedException;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryWatcher;
+import io.druid.segment.Segment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.guava.Accumulator;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+import com.metamx.common.guava.Yielder;
+import com.metamx.common.guava.YieldingAccumulator;
+
+/**
+ * QueryWatcher which keeps track of running queries by query id, so that they can be cancelled.
+ * Futures registered by query runners (ex: per segment futures of multi segment queries) are cancelled
+ * with interruption, so that the consumer waiting for them fails at once with QueryInterruptedException,
+ * and results Sequence of watched query fails on next row, which closes its resources.
+ * A query also gets cancelled once its "timeout" context value (in milliseconds) has elapsed.
+ * Cursors of segments wrapped by {@link #watch(Query, Segment)} check on every row whether their query was
+ * cancelled (or their thread interrupted), so a running segment scan stops within a row and its engine gives
+ * its processing buffer back to pool.
+ *
+ */
+public class TrackingQueryWatcher implements QueryWatcher {
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("embedded-druid-query-timeout-%d").build());
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private final SetMultimap<String, ListenableFuture> futures =
+			Multimaps.synchronizedSetMultimap(HashMultimap.<String, ListenableFuture>create());
+	private final SetMultimap<String, RunningQuery> running =
+			Multimaps.synchronizedSetMultimap(HashMultimap.<String, RunningQuery>create());
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void registerQuery(Query query, final ListenableFuture future) {
+		final String id = query.getId();
+		if (id == null) {
+			return;
+		}
+		futures.put(id, future);
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				futures.remove(id, future);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		for (RunningQuery runningQuery : getRunning(id)) {
+			if (runningQuery.reason != null) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Cancels all running queries with given id.
+	 *
+	 * @return false if no such query is running
+	 */
+	public boolean cancel(String queryId) {
+		return interrupt(queryId, new CancellationException(String.format("Query [%s] cancelled", queryId)));
+	}
+
+	/**
+	 * Ids of queries whose results are being computed or consumed.
+	 */
+	public Set<String> getRunningQueries() {
+		synchronized (running) {
+			return new HashSet<String>(running.keySet());
+		}
+	}
+
+	/**
+	 * Watches results of query until they are fully consumed (or Yielder is closed). Query must have an id.
+	 * Query is registered (and its timeout starts being enforced) once its results start being consumed, so a
+	 * Sequence which is never consumed leaves nothing behind. Timeout is counted from this call.
+	 */
+	public <T> Sequence<T> watch(Query<T> query, Sequence<T> results) {
+		return watch(new RunningQuery(query), results);
+	}
+
+	/**
+	 * Same as {@link #watch(Query, Sequence)}, runner is only run once results start being consumed (on consuming
+	 * thread, rows are streamed as runner produces them), so that query is registered before any segment is
+	 * scanned and runners which take resources when they are run (ex: GroupBy buffer) take nothing otherwise.
+	 */
+	public <T> Sequence<T> watch(final Query<T> query, final QueryRunner<T> runner) {
+		return watch(new RunningQuery(query), new LazySequence<T>(new Supplier<Sequence<T>>() {
+			@Override
+			public Sequence<T> get() {
+				return runner.run(query, new HashMap<String, Object>());
+			}
+		}));
+	}
+
+	/**
+	 * Segment whose cursors fail with QueryInterruptedException as soon as query is cancelled or times out, or
+	 * scanning thread is interrupted (ex: per segment future cancelled), instead of scanning segment to its end.
+	 * Query must be watched (see {@link #watch(Query, QueryRunner)}) before segment is scanned.
+	 */
+	public Segment watch(Query<?> query, Segment segment) {
+		final String id = query.getId();
+		return ScanListeningSegment.listen(segment, new ScanListeningSegment.ScanListener() {
+			private List<RunningQuery> queries;
+
+			@Override
+			public void onAdvance() {
+				if (Thread.interrupted()) {
+					throw new QueryInterruptedException(new InterruptedException(
+							String.format("Query [%s] interrupted", id)));
+				}
+				if (queries == null) {
+					queries = getRunning(id);
+				}
+				for (RunningQuery runningQuery : queries) {
+					runningQuery.checkCancelled();
+				}
+			}
+		});
+	}
+
+	private <T> Sequence<T> watch(final RunningQuery runningQuery, Sequence<T> results) {
+		final Sequence<T> checked = Sequences.withBaggage(Sequences.map(results, new Function<T, T>() {
+			@Override
+			public T apply(T input) {
+				runningQuery.check();
+				return input;
+			}
+		}), runningQuery);
+		return new Sequence<T>() {
+			@Override
+			public <OutType> OutType accumulate(OutType initValue, Accumulator<OutType, T> accumulator) {
+				runningQuery.start();
+				return checked.accumulate(initValue, accumulator);
+			}
+
+			@Override
+			public <OutType> Yielder<OutType> toYielder(OutType initValue,
+					YieldingAccumulator<OutType, T> accumulator) {
+				runningQuery.start();
+				return checked.toYielder(initValue, accumulator);
+			}
+		};
+	}
+
+	private boolean interrupt(String queryId, Exception reason) {
+		List<RunningQuery> queries = getRunning(queryId);
+		for (RunningQuery query : queries) {
+			if (query.reason == null) {
+				query.reason = reason;
+			}
+		}
+		@SuppressWarnings("rawtypes")
+		List<ListenableFuture> toCancel;
+		synchronized (futures) {
+			toCancel = new ArrayList<ListenableFuture>(futures.get(queryId));
+		}
+		for (ListenableFuture<?> future : toCancel) {
+			future.cancel(true);
+		}
+		return !queries.isEmpty() || !toCancel.isEmpty();
+	}
+
+	private List<RunningQuery> getRunning(String queryId) {
+		synchronized (running) {
+			return new ArrayList<RunningQuery>(running.get(queryId));
+		}
+	}
+
+	private class RunningQuery implements Closeable {
+		private final String id;
+		private final long timeoutMillis;
+		private final long deadline;
+		private volatile Exception reason;
+		private volatile ScheduledFuture<?> timeoutTask;
+		private boolean started;
+
+		RunningQuery(Query<?> query) {
+			Number timeout = query.getContextValue(QueryContextKeys.TIMEOUT, (Number) null);
+			this.id = query.getId();
+			this.timeoutMillis = timeout == null ? 0 : timeout.longValue();
+			this.deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		}
+
+		/**
+		 * Registers query as running and schedules its timeout, once.
+		 */
+		synchronized void start() {
+			if (started) {
+				return;
+			}
+			started = true;
+			running.put(id, this);
+			if (timeoutMillis > 0) {
+				timeoutTask = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						interrupt(id, timeoutException());
+					}
+				}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+		}
+
+		void check() {
+			if (reason == null && System.currentTimeMillis() > deadline) {
+				reason = timeoutException();
+			}
+			checkCancelled();
+		}
+
+		/**
+		 * Cheap check of segment scans, once per row : timeout is turned into a reason by timer.
+		 */
+		void checkCancelled() {
+			if (reason != null) {
+				throw new QueryInterruptedException(reason);
+			}
+		}
+
+		private TimeoutException timeoutException() {
+			return new TimeoutException(String.format("Query [%s] timed out after %,d ms", id, timeoutMillis));
+		}
+
+		@Override
+		public void close() throws IOException {
+			ScheduledFuture<?> task = timeoutTask;
+			if (task != null) {
+				task.cancel(false);
+			}
+			running.remove(id, this);
+		}
+	}
+
+	/**
+	 * Sequence whose base is created once it is consumed.
+	 */
+	private static class LazySequence<T> implements Sequence<T> {
+		private final Supplier<Sequence<T>> supplier;
+
+		LazySequence(Supplier<Sequence<T>> supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		public <OutType> OutType accumulate(OutType initValue, Accumulator<OutType, T> accumulator) {
+			return supplier.get().accumulate(initValue, accumulator);
+		}
+
+		@Override
+		public <OutType> Yielder<OutType> toYielder(OutType initValue, YieldingAccumulator<OutType, T> accumulator) {
+			return supplier.get().toYielder(initValue, accumulator);
+		}
+	}
+}
@@ -16,18 +16,23 @@
 
 package io.druid.embedded;
 
-import io.druid.collections.StupidPool;
 import io.druid.query.IntervalChunkingQueryRunnerDecorator;
 import io.druid.query.Query;
 import io.druid.query.QueryRunner;
 import io.druid.query.QueryToolChest;
 import io.druid.query.QueryWatcher;
+import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingSerde;
+import io.druid.query.aggregation.hyperloglog.HyperUniquesSerde;
+import io.druid.segment.serde.ComplexMetricSerde;
+import io.druid.segment.serde.ComplexMetrics;
 
-import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import com.google.common.base.Supplier;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.metamx.common.guava.Sequence;
 import com.metamx.emitter.core.Event;
 import com.metamx.emitter.service.ServiceEmitter;
@@ -35,18 +40,6 @@ import com.metamx.emitter.service.ServiceEmitter;
 public class Utils {
 	public static final int MAX_TOTAL_BUFFER_SIZE = 1024*1024*1024;
 	
-	private static class ByteBufferSuplier implements Supplier<ByteBuffer> {
-		int capacity;
-
-		public ByteBufferSuplier(int capacity) {
-			this.capacity = capacity;
-		}
-
-		public ByteBuffer get() {
-			return ByteBuffer.allocate(capacity);
-		}
-	}
-	
 	public static ServiceEmitter NOOP_SERVICE_EMITTER = new ServiceEmitter(null, null, null) {
 		@Override
 	    public void emit(Event event) {}
@@ -57,8 +50,92 @@ public class Utils {
 	    public void registerQuery(Query query, ListenableFuture future) {}
 	};
 	
-	public static StupidPool<ByteBuffer> getBufferPool() {
-	    return new StupidPool<ByteBuffer>(new ByteBufferSuplier(MAX_TOTAL_BUFFER_SIZE / 2));
+	/**
+	 * Registers serdes of complex metrics (handled by Guice in Druid system) : approximate histograms and
+	 * HyperLogLog ("hyperUnique" aggregator, which pre-aggregates distinct counts at ingestion with constant
+	 * memory per row). Called by IndexHelper and QueryHelper before any segment is built or queried.
+	 */
+	static synchronized void registerComplexMetrics() {
+		registerSerde(new ApproximateHistogramFoldingSerde());
+		// same hash function as Druid AggregatorsModule, so that segments built by Druid can be queried
+		registerSerde(new HyperUniquesSerde(Hashing.murmur3_128()));
+	}
+
+	private static void registerSerde(ComplexMetricSerde serde) {
+		if (ComplexMetrics.getSerdeForType(serde.getTypeName()) == null) {
+			ComplexMetrics.registerSerde(serde.getTypeName(), serde);
+		}
+	}
+
+	private static BoundedBufferPool bufferPool;
+
+	/**
+	 * Process wide pool of processing buffers shared by all query engines (GroupBy, TopN).
+	 * One buffer is held by each query while it is processing a segment, so number of buffers limits
+	 * number of queries processed concurrently. It is sized by following system properties :
+	 * "druid.processing.buffer.sizeBytes" (default 128MB), "druid.processing.numBuffers"
+	 * (default number of cores + 1), "druid.processing.buffer.direct" (default true) and
+	 * "druid.processing.buffer.takeTimeoutMillis" (time to wait for free buffer, default 60s,
+	 * negative waits forever and 0 fails immediately).
+	 */
+	public static synchronized BoundedBufferPool getBufferPool() {
+		if (bufferPool == null) {
+			int bufferSize = Integer.getInteger("druid.processing.buffer.sizeBytes", 128 * 1024 * 1024);
+			int numBuffers = Integer.getInteger("druid.processing.numBuffers",
+					Runtime.getRuntime().availableProcessors() + 1);
+			String direct = System.getProperty("druid.processing.buffer.direct", "true");
+			long takeTimeoutMillis = Long.getLong("druid.processing.buffer.takeTimeoutMillis", 60000);
+			bufferPool = new BoundedBufferPool(bufferSize, numBuffers, Boolean.parseBoolean(direct),
+					takeTimeoutMillis);
+		}
+		return bufferPool;
+	}
+
+	private static BoundedBufferPool offheapBufferPool;
+
+	/**
+	 * Process wide pool of direct buffers used by off-heap IncrementalIndex for aggregation state.
+	 * It is sized by "druid.offheap.buffer.sizeBytes" (default 64MB), "druid.offheap.maxTotalBytes"
+	 * (default 1GB) and "druid.offheap.takeTimeoutMillis" (default 30s) system properties.
+	 */
+	public static synchronized BoundedBufferPool getOffheapBufferPool() {
+		if (offheapBufferPool == null) {
+			int bufferSize = Integer.getInteger("druid.offheap.buffer.sizeBytes", 64 * 1024 * 1024);
+			long maxTotalBytes = Long.getLong("druid.offheap.maxTotalBytes", MAX_TOTAL_BUFFER_SIZE);
+			long takeTimeoutMillis = Long.getLong("druid.offheap.takeTimeoutMillis", 30000);
+			offheapBufferPool = new BoundedBufferPool(bufferSize,
+					(int) Math.max(1, maxTotalBytes / bufferSize), true, takeTimeoutMillis);
+		}
+		return offheapBufferPool;
+	}
+
+	/**
+	 * Replaces process wide off-heap pool, used by indexes created from now on.
+	 *
+	 * @return previous pool, null if it was not created yet
+	 */
+	static synchronized BoundedBufferPool setOffheapBufferPool(BoundedBufferPool pool) {
+		BoundedBufferPool previous = offheapBufferPool;
+		offheapBufferPool = pool;
+		return previous;
+	}
+
+	private static ExecutorService processingExecutor;
+
+	/**
+	 * Process wide executor used to process segments of a query concurrently. Number of threads is set by
+	 * "druid.processing.numThreads" system property (default number of cores).
+	 */
+	public static synchronized ExecutorService getProcessingExecutor() {
+		if (processingExecutor == null) {
+			int numThreads = Integer.getInteger("druid.processing.numThreads",
+					Runtime.getRuntime().availableProcessors());
+			processingExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+					.setDaemon(true)
+					.setNameFormat("embedded-druid-processing-%d")
+					.build());
+		}
+		return processingExecutor;
 	}
 
 	public static IntervalChunkingQueryRunnerDecorator NoopIntervalChunkingQueryRunnerDecorator() {
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Throwables;
+
+import io.druid.data.input.InputRow;
+
+/**
+ * Loader handing rows over in column oriented blocks (see {@link RowBlock}), for sources which are already
+ * columnar or dictionary encoded. Implementations only provide {@link #next(RowBlock)}; rows are then fed to
+ * IncrementalIndex through the reused row view of the block, without creating any object per row.
+ * Every ingestion API of IndexHelper accepts a BatchLoader as any other Loader.
+ *
+ */
+public abstract class BatchLoader extends Loader {
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	protected final List<String> metrics;
+	private final int blockSize;
+
+	/**
+	 * @param dims : dimension columns, in order of dimension ids of blocks
+	 * @param metrics : metric columns, in order of metric values of blocks
+	 * @param blockSize : number of rows per block
+	 */
+	protected BatchLoader(List<String> dims, List<String> metrics, int blockSize) {
+		super(concat(dims, metrics), dims, null);
+		this.metrics = metrics;
+		this.blockSize = blockSize;
+	}
+
+	protected BatchLoader(List<String> dims, List<String> metrics) {
+		this(dims, metrics, DEFAULT_BLOCK_SIZE);
+	}
+
+	private static List<String> concat(List<String> dims, List<String> metrics) {
+		List<String> columns = new ArrayList<String>(dims);
+		columns.addAll(metrics);
+		return columns;
+	}
+
+	/**
+	 * Creates an empty block for this loader. Same block should be refilled, so that dimension dictionaries
+	 * keep growing across blocks.
+	 */
+	public RowBlock newBlock() {
+		return new RowBlock(dimensions, metrics, blockSize);
+	}
+
+	/**
+	 * Fills block with next rows (setting its size) and appends new dimension values to its dictionaries.
+	 *
+	 * @return false, without filling any row, once input is exhausted
+	 * @throws IOException
+	 */
+	public abstract boolean next(RowBlock block) throws IOException;
+
+	/**
+	 * Iterates rows of successive blocks. Returned InputRow is the reused view of the block, it is only valid
+	 * until next() is called.
+	 */
+	@Override
+	public Iterator<InputRow> iterator() {
+		final RowBlock block = newBlock();
+		return new Iterator<InputRow>() {
+			private int row;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				while (!done && row >= block.getSize()) {
+					try {
+						done = !next(block);
+					} catch (IOException e) {
+						throw Throwables.propagate(e);
+					}
+					row = 0;
+				}
+				return !done;
+			}
+
+			@Override
+			public InputRow next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return block.getRow(row++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
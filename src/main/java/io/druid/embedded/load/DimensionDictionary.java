@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Dictionary of values of one dimension, used by loaders to encode values as ids or to intern them while
+ * reading, directly from a char array so that a String is only created the first time a value is seen.
+ * Lookups go through an open addressing table of ids (no boxing, no entry objects), bounded to "maxSize" values.
+ * Hash of a char range is the same as String.hashCode(), so that the table can be rebuilt from values when it grows.
+ * Once the dictionary is full, a dimension whose values keep missing it is considered high cardinality and
+ * lookups are disabled : values are then returned as plain new Strings without hashing them.
+ * Not thread safe.
+ *
+ */
+public class DimensionDictionary {
+	public static final int NOT_ENCODED = -1;
+	/**
+	 * Lookups sampled once dictionary is full, before deciding whether to keep using it.
+	 */
+	static final int SATURATION_SAMPLES = 10000;
+
+	private int[] table;
+	private int mask;
+	private final int maxSize;
+	private final List<String> values = new ArrayList<String>();
+	private long lookups;
+	private long misses;
+	private long saturatedLookups;
+	private long saturatedMisses;
+	private boolean disabled;
+
+	public DimensionDictionary(int maxSize) {
+		Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+		this.maxSize = maxSize;
+		resize(16);
+	}
+
+	/**
+	 * Id of value, adding it to dictionary if it is not full.
+	 *
+	 * @return NOT_ENCODED if value is not in full (or disabled) dictionary
+	 */
+	public int getId(char[] chars, int offset, int length) {
+		if (disabled) {
+			return NOT_ENCODED;
+		}
+		lookups++;
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		int entry;
+		while ((entry = table[slot]) != 0) {
+			if (matches(values.get(entry - 1), chars, offset, length)) {
+				if (values.size() >= maxSize) {
+					saturatedLookups++;
+				}
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		misses++;
+		if (values.size() < maxSize) {
+			values.add(new String(chars, offset, length));
+			table[slot] = values.size();
+			if (values.size() * 2 > table.length) {
+				resize(table.length * 2);
+			}
+			return values.size() - 1;
+		}
+		saturatedLookups++;
+		saturatedMisses++;
+		if (saturatedLookups >= SATURATION_SAMPLES) {
+			// keep dictionary only if most values are found in it
+			disabled = saturatedMisses * 2 > saturatedLookups;
+			saturatedLookups = 0;
+			saturatedMisses = 0;
+		}
+		return NOT_ENCODED;
+	}
+
+	/**
+	 * Table is kept at most half full, it grows along with dictionary (low cardinality dimensions stay small).
+	 */
+	private void resize(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		for (int id = 0; id < values.size(); id++) {
+			String value = values.get(id);
+			int hash = value.hashCode();
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	public int getId(String value) {
+		return getId(value.toCharArray(), 0, value.length());
+	}
+
+	/**
+	 * Shared String instance of value, or a new String if value is not in dictionary.
+	 */
+	public String intern(char[] chars, int offset, int length) {
+		int id = getId(chars, offset, length);
+		return id == NOT_ENCODED ? new String(chars, offset, length) : values.get(id);
+	}
+
+	public String get(int id) {
+		return values.get(id);
+	}
+
+	/**
+	 * Values indexed by id.
+	 */
+	public List<String> getValues() {
+		return Collections.unmodifiableList(values);
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * True once dictionary is full and most looked up values are not in it.
+	 */
+	public boolean isDisabled() {
+		return disabled;
+	}
+
+	public long getLookupCount() {
+		return lookups;
+	}
+
+	/**
+	 * Lookups of values which were not in dictionary yet (whether they were added or not).
+	 */
+	public long getMissCount() {
+		return misses;
+	}
+
+	private static boolean matches(String value, char[] chars, int offset, int length) {
+		if (value.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (value.charAt(i) != chars[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -16,6 +16,7 @@
 
 package io.druid.embedded.load;
 
+import java.io.IOException;
 import java.util.List;
 
 import io.druid.data.input.InputRow;
@@ -36,4 +37,16 @@ public abstract class Loader implements Iterable<InputRow> {
 		  this.dimensions = dims;
 		  this.timestampDimension = ts;
 	  }
+
+	  /**
+	   * Fingerprint of input (its content, or attributes like path, length and modification time of a file) and
+	   * parsing settings : loaders with same fingerprint produce same rows.
+	   * Used by SegmentCache to reuse segments built earlier from same input.
+	   *
+	   * @return null if input can not be fingerprinted (ex: a stream which can only be read once)
+	   * @throws IOException
+	   */
+	  public String getFingerprint() throws IOException {
+		  return null;
+	  }
 }
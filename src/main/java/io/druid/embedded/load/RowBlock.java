@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+
+/**
+ * Block of rows stored by column : timestamps, dictionary encoded dimension values and metric values.
+ * Dimension ids index the dictionary of their dimension, which is kept by the block across refills so that a
+ * {@link BatchLoader} only appends values it has not seen yet; id -1 stands for a missing value.
+ * {@link #getRow(int)} exposes a row as InputRow without copying it, through a single reused view.
+ *
+ */
+public class RowBlock {
+	public static final int NULL_ID = -1;
+
+	private final List<String> dimensions;
+	private final List<String> metrics;
+	private final Map<String, Integer> dimensionIndex = new HashMap<String, Integer>();
+	private final Map<String, Integer> metricIndex = new HashMap<String, Integer>();
+	private final long[] timestamps;
+	private final int[][] dimensionIds;
+	private final double[][] metricValues;
+	private final List<List<String>> dictionaries = new ArrayList<List<String>>();
+	private final RowView view = new RowView();
+	private int size;
+
+	public RowBlock(List<String> dimensions, List<String> metrics, int capacity) {
+		Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+		this.dimensions = Collections.unmodifiableList(new ArrayList<String>(dimensions));
+		this.metrics = Collections.unmodifiableList(new ArrayList<String>(metrics));
+		this.timestamps = new long[capacity];
+		this.dimensionIds = new int[dimensions.size()][capacity];
+		this.metricValues = new double[metrics.size()][capacity];
+		for (int i = 0; i < dimensions.size(); i++) {
+			dimensionIndex.put(dimensions.get(i), i);
+			dictionaries.add(new ArrayList<String>());
+		}
+		for (int i = 0; i < metrics.size(); i++) {
+			metricIndex.put(metrics.get(i), i);
+		}
+	}
+
+	public List<String> getDimensions() {
+		return dimensions;
+	}
+
+	public List<String> getMetrics() {
+		return metrics;
+	}
+
+	public int getCapacity() {
+		return timestamps.length;
+	}
+
+	/**
+	 * Number of valid rows, at the beginning of every column array.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public void setSize(int size) {
+		Preconditions.checkArgument(size >= 0 && size <= getCapacity(), "size must be between 0 and capacity");
+		this.size = size;
+	}
+
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	public int[] getDimensionIds(int dimension) {
+		return dimensionIds[dimension];
+	}
+
+	public double[] getMetricValues(int metric) {
+		return metricValues[metric];
+	}
+
+	/**
+	 * Values of dimension indexed by id. Loader appends new values to it while encoding rows.
+	 */
+	public List<String> getDictionary(int dimension) {
+		return dictionaries.get(dimension);
+	}
+
+	/**
+	 * View of row, valid until next call (IncrementalIndex.add copies what it needs).
+	 */
+	public InputRow getRow(int row) {
+		Preconditions.checkElementIndex(row, size);
+		view.row = row;
+		return view;
+	}
+
+	private class RowView implements InputRow {
+		private final SingleValueList value = new SingleValueList();
+		private int row;
+
+		@Override
+		public List<String> getDimensions() {
+			return dimensions;
+		}
+
+		@Override
+		public long getTimestampFromEpoch() {
+			return timestamps[row];
+		}
+
+		@Override
+		public DateTime getTimestamp() {
+			return new DateTime(timestamps[row]);
+		}
+
+		private String getValue(String dimension) {
+			Integer index = dimensionIndex.get(dimension);
+			if (index == null) {
+				return null;
+			}
+			int id = dimensionIds[index][row];
+			return id == NULL_ID ? null : dictionaries.get(index).get(id);
+		}
+
+		@Override
+		public List<String> getDimension(String dimension) {
+			String v = getValue(dimension);
+			if (v == null) {
+				return Collections.emptyList();
+			}
+			value.value = v;
+			return value;
+		}
+
+		@Override
+		public Object getRaw(String dimension) {
+			Integer index = metricIndex.get(dimension);
+			return index == null ? getValue(dimension) : (Object) (float) metricValues[index][row];
+		}
+
+		@Override
+		public float getFloatMetric(String metric) {
+			Integer index = metricIndex.get(metric);
+			return index == null ? 0f : (float) metricValues[index][row];
+		}
+
+		@Override
+		public long getLongMetric(String metric) {
+			Integer index = metricIndex.get(metric);
+			return index == null ? 0l : (long) metricValues[index][row];
+		}
+
+		@Override
+		public int compareTo(Row o) {
+			return Longs.compare(timestamps[row], o.getTimestampFromEpoch());
+		}
+	}
+
+	/**
+	 * Reusable single element list returned by getDimension.
+	 */
+	private static class SingleValueList extends AbstractList<String> {
+		String value;
+
+		@Override
+		public String get(int index) {
+			if (index != 0) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return value;
+		}
+
+		@Override
+		public int size() {
+			return 1;
+		}
+	}
+}
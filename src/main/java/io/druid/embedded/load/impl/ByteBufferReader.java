@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reader which decodes chars straight from a (memory mapped) ByteBuffer, without copying bytes to heap first.
+ *
+ */
+class ByteBufferReader extends Reader {
+	private final ByteBuffer buffer;
+	private final CharsetDecoder decoder;
+	private boolean decoded;
+	private boolean flushed;
+
+	ByteBufferReader(ByteBuffer buffer, Charset charset) {
+		this.buffer = buffer;
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		while (out.position() == off && !flushed) {
+			if (!decoded) {
+				CoderResult result = decoder.decode(buffer, out, true);
+				if (result.isError()) {
+					result.throwException();
+				}
+				decoded = result.isUnderflow();
+			}
+			if (decoded) {
+				CoderResult result = decoder.flush(out);
+				if (result.isError()) {
+					throw new CharacterCodingException();
+				}
+				flushed = result.isUnderflow();
+			}
+		}
+		int read = out.position() - off;
+		return read == 0 ? -1 : read;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -20,15 +20,14 @@ import java.util.Iterator;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.StringTokenizer;
 
 import io.druid.data.input.InputRow;
 import io.druid.data.input.MapBasedInputRow;
 import io.druid.data.input.impl.DimensionSchema;
+import io.druid.embedded.load.DimensionDictionary;
 import io.druid.embedded.load.Loader;
 
 /**
@@ -44,7 +43,10 @@ import io.druid.embedded.load.Loader;
  */
 public class CSVLoader extends Loader {
 
+	static final int MAX_INTERNED_VALUES = 100000;
+
 	protected Reader reader;
+	private final DimensionDictionary[] dictionaries;
 	
 	/**
 	 * @param reader : Reader object pointing to CSV file
@@ -55,6 +57,12 @@ public class CSVLoader extends Loader {
 	public CSVLoader(Reader reader, List<String> columns, List<String> dims, String timestampDimension) {
 		super(columns, dims, timestampDimension);
 		this.reader = reader;
+		this.dictionaries = new DimensionDictionary[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			if (dims.contains(columns.get(i))) {
+				dictionaries[i] = new DimensionDictionary(MAX_INTERNED_VALUES);
+			}
+		}
 	}
 	
 	@Override
@@ -62,29 +70,46 @@ public class CSVLoader extends Loader {
 		return new CSVReaderIterator();
 	}
 
+	/**
+	 * Splits row on commas (empty fields are skipped) and maps it by column. Values of dimension columns are
+	 * interned through one DimensionDictionary per column, so repeated values share one String instance.
+	 *
+	 * @return null if row does not have as many fields as columns
+	 */
 	protected Map<String, Object> parse(String row) {
-		List<String> data = new ArrayList<String>();
-		StringTokenizer stk = new StringTokenizer(row, ",");
-		while(stk.hasMoreTokens()) {
-			data.add(stk.nextToken());
+		char[] chars = row.toCharArray();
+		Map<String, Object> map = new HashMap<String, Object>();
+		int column = 0;
+		int start = 0;
+		for (int i = 0; i <= chars.length; i++) {
+			if (i < chars.length && chars[i] != ',') {
+				continue;
+			}
+			if (i > start) {
+				if (column == columns.size()) {
+					return null;
+				}
+				put(map, column++, chars, start, i - start);
+			}
+			start = i + 1;
+		}
+		return column == columns.size() ? map : null;
+	}
+
+	private void put(Map<String, Object> map, int column, char[] chars, int offset, int length) {
+		if (length == 4 && chars[offset] == 'n' && chars[offset + 1] == 'u' && chars[offset + 2] == 'l'
+				&& chars[offset + 3] == 'l') {
+			return;
+		}
+		String name = columns.get(column);
+		//Column name "value" is treated as special column containing value of metric
+		if (name.equals("value")) {
+			map.put(name, Float.parseFloat(new String(chars, offset, length)));
+		} else if (dictionaries[column] != null) {
+			map.put(name, dictionaries[column].intern(chars, offset, length));
+		} else {
+			map.put(name, new String(chars, offset, length));
 		}
-	    Map<String, Object> map = new HashMap<String, Object>();
-	    if(data.size() != columns.size()) {
-	    	return null;
-	    }
-	    for (int i = 0; i < columns.size(); i++) {
-	    	if (data.get(i).equals("null") || data.get(i).isEmpty()) {
-	    		continue;
-	    	} else {
-	    		//Column name "value" is treated as special column containing value of metric
-	    		if (columns.get(i).equals("value")) {
-	    			map.put(columns.get(i), Float.parseFloat(data.get(i)));
-	    		} else {
-	    			map.put(columns.get(i), data.get(i));
-	    		}
-	    	}
-	    }
-	    return map;
 	}
 	
 	private class CSVReaderIterator implements Iterator<InputRow> {
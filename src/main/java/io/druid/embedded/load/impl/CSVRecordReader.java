@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads one CSV record at a time into reusable char array, without creating any object per record or field.
+ * Fields can be enclosed in double quotes, in which case they can contain separators and line breaks,
+ * and quote can be escaped either by doubling it ("") or with backslash (\").
+ * Input is either a Reader, read through a fixed size buffer, or a char array which is scanned in place.
+ *
+ */
+class CSVRecordReader implements Closeable {
+	private static final char SEPARATOR = ',';
+	private static final char QUOTE = '"';
+	private static final char ESCAPE = '\\';
+	private static final char[] NULL = "null".toCharArray();
+
+	/**
+	 * Powers of ten which are exactly representable as double.
+	 */
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private final Reader reader;
+	private final char[] buffer;
+	private int position;
+	private int limit;
+
+	private char[] record = new char[256];
+	private int recordLength;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int fieldCount;
+
+	CSVRecordReader(Reader reader, int bufferSize) {
+		this.reader = reader;
+		this.buffer = new char[bufferSize];
+	}
+
+	CSVRecordReader(char[] data, int offset, int length) {
+		this.reader = null;
+		this.buffer = data;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+
+	/**
+	 * Reads next record.
+	 *
+	 * @return false if there is no more record
+	 * @throws IOException
+	 */
+	boolean next() throws IOException {
+		recordLength = 0;
+		fieldCount = 0;
+		if (position >= limit && !fill()) {
+			return false;
+		}
+		int fieldStart = 0;
+		boolean inQuotes = false;
+		while (position < limit || fill()) {
+			char c = buffer[position++];
+			if (inQuotes) {
+				if (c == QUOTE) {
+					if ((position < limit || fill()) && buffer[position] == QUOTE) {
+						append(QUOTE);
+						position++;
+					} else {
+						inQuotes = false;
+					}
+				} else if (c == ESCAPE && (position < limit || fill())) {
+					append(buffer[position++]);
+				} else {
+					append(c);
+				}
+			} else if (c == SEPARATOR) {
+				endField(fieldStart);
+				fieldStart = recordLength;
+			} else if (c == '\n') {
+				break;
+			} else if (c == '\r') {
+				if ((position < limit || fill()) && buffer[position] == '\n') {
+					position++;
+				}
+				break;
+			} else if (c == QUOTE && recordLength == fieldStart) {
+				inQuotes = true;
+			} else {
+				append(c);
+			}
+		}
+		endField(fieldStart);
+		return true;
+	}
+
+	private boolean fill() throws IOException {
+		if (reader == null) {
+			return false;
+		}
+		int read;
+		do {
+			read = reader.read(buffer, 0, buffer.length);
+		} while (read == 0);
+		if (read < 0) {
+			return false;
+		}
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	private void append(char c) {
+		if (recordLength == record.length) {
+			record = Arrays.copyOf(record, record.length * 2);
+		}
+		record[recordLength++] = c;
+	}
+
+	private void endField(int fieldStart) {
+		if (fieldCount == starts.length) {
+			starts = Arrays.copyOf(starts, starts.length * 2);
+			ends = Arrays.copyOf(ends, ends.length * 2);
+		}
+		starts[fieldCount] = fieldStart;
+		ends[fieldCount] = recordLength;
+		fieldCount++;
+	}
+
+	int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Chars of current record, field i is at [getStart(i), getStart(i) + getLength(i)).
+	 * Content is overwritten by next().
+	 */
+	char[] getChars() {
+		return record;
+	}
+
+	int getStart(int field) {
+		return starts[field];
+	}
+
+	int getLength(int field) {
+		return ends[field] - starts[field];
+	}
+
+	/**
+	 * Empty field and "null" are treated as missing value.
+	 */
+	boolean isNull(int field) {
+		int length = getLength(field);
+		if (length == 0) {
+			return true;
+		}
+		if (length != NULL.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (record[starts[field] + i] != NULL[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String getString(int field) {
+		return new String(record, starts[field], getLength(field));
+	}
+
+	long parseLong(int field) {
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = false;
+		if (i < end && (record[i] == '-' || record[i] == '+')) {
+			negative = record[i] == '-';
+			i++;
+		}
+		if (i == end || end - i > 18) {
+			return slowParseLong(field);
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = record[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return slowParseLong(field);
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private long slowParseLong(int field) {
+		String value = getString(field).trim();
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return (long) Double.parseDouble(value);
+		}
+	}
+
+	/**
+	 * Parses plain decimal numbers (ex: -12.5, 3e4) without creating String. Result is exact as long as
+	 * mantissa fits in 53 bits and decimal exponent is at most 22, otherwise it falls back to Double.parseDouble.
+	 */
+	double parseDouble(int field) {
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = false;
+		if (i < end && (record[i] == '-' || record[i] == '+')) {
+			negative = record[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean seenDot = false;
+		for (; i < end; i++) {
+			char c = record[i];
+			if (c >= '0' && c <= '9') {
+				if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+					return slowParseDouble(field);
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (seenDot) {
+					exponent--;
+				}
+			} else if (c == '.' && !seenDot) {
+				seenDot = true;
+			} else if ((c == 'e' || c == 'E') && digits > 0) {
+				break;
+			} else {
+				return slowParseDouble(field);
+			}
+		}
+		if (digits == 0) {
+			return slowParseDouble(field);
+		}
+		if (i < end) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (record[i] == '-' || record[i] == '+')) {
+				negativeExponent = record[i] == '-';
+				i++;
+			}
+			if (i == end) {
+				return slowParseDouble(field);
+			}
+			int explicitExponent = 0;
+			for (; i < end; i++) {
+				int digit = record[i] - '0';
+				if (digit < 0 || digit > 9 || explicitExponent > POW10.length) {
+					return slowParseDouble(field);
+				}
+				explicitExponent = explicitExponent * 10 + digit;
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		double value;
+		if (exponent == 0) {
+			value = mantissa;
+		} else if (exponent > 0 && exponent < POW10.length) {
+			value = mantissa * POW10[exponent];
+		} else if (exponent < 0 && -exponent < POW10.length) {
+			value = mantissa / POW10[-exponent];
+		} else {
+			return slowParseDouble(field);
+		}
+		return negative ? -value : value;
+	}
+
+	private double slowParseDouble(int field) {
+		return Double.parseDouble(getString(field).trim());
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import com.google.common.primitives.Longs;
+
+import io.druid.data.input.InputRow;
+import io.druid.data.input.Row;
+import io.druid.embedded.load.DimensionDictionary;
+
+/**
+ * InputRow view over current record of CSVRecordReader. Same instance is reused for every record,
+ * so it is only valid until reader moves to next record (IncrementalIndex.add copies what it needs).
+ * Dimension values are interned per column through a DimensionDictionary, columns which are not dimensions are parsed as numbers
+ * without creating intermediate Strings.
+ *
+ */
+class CSVRecordRow implements InputRow {
+	static final int MAX_INTERNED_VALUES = 100000;
+
+	private final List<String> dimensions;
+	private final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+	private final int timestampColumn;
+	private final boolean[] numeric;
+	private final DimensionDictionary[] dictionaries;
+	private final SingleValueList[] values;
+	private CSVRecordReader record;
+	private long timestamp;
+
+	CSVRecordRow(List<String> columns, List<String> dimensions, String timestampDimension) {
+		this.dimensions = dimensions;
+		this.numeric = new boolean[columns.size()];
+		this.dictionaries = new DimensionDictionary[columns.size()];
+		this.values = new SingleValueList[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			columnIndex.put(columns.get(i), i);
+			numeric[i] = !dimensions.contains(columns.get(i));
+			dictionaries[i] = numeric[i] ? null : new DimensionDictionary(MAX_INTERNED_VALUES);
+			values[i] = new SingleValueList();
+		}
+		Integer ts = timestampDimension == null ? null : columnIndex.get(timestampDimension);
+		this.timestampColumn = ts == null ? -1 : ts;
+	}
+
+	/**
+	 * Points this row to current record of reader.
+	 */
+	void set(CSVRecordReader record) {
+		this.record = record;
+		this.timestamp = timestampColumn < 0 ? 1l : record.parseLong(timestampColumn);
+	}
+
+	private int indexOf(String column) {
+		Integer index = columnIndex.get(column);
+		if (index == null || record.isNull(index)) {
+			return -1;
+		}
+		return index;
+	}
+
+	private String getString(int index) {
+		if (dictionaries[index] == null) {
+			return new String(record.getChars(), record.getStart(index), record.getLength(index));
+		}
+		return dictionaries[index].intern(record.getChars(), record.getStart(index), record.getLength(index));
+	}
+
+	@Override
+	public List<String> getDimensions() {
+		return dimensions;
+	}
+
+	@Override
+	public long getTimestampFromEpoch() {
+		return timestamp;
+	}
+
+	@Override
+	public DateTime getTimestamp() {
+		return new DateTime(timestamp);
+	}
+
+	@Override
+	public List<String> getDimension(String dimension) {
+		int index = indexOf(dimension);
+		if (index < 0) {
+			return Collections.emptyList();
+		}
+		values[index].value = getString(index);
+		return values[index];
+	}
+
+	@Override
+	public Object getRaw(String dimension) {
+		int index = indexOf(dimension);
+		if (index < 0) {
+			return null;
+		}
+		return numeric[index] ? (Object) (float) record.parseDouble(index) : getString(index);
+	}
+
+	@Override
+	public float getFloatMetric(String metric) {
+		int index = indexOf(metric);
+		return index < 0 ? 0f : (float) record.parseDouble(index);
+	}
+
+	@Override
+	public long getLongMetric(String metric) {
+		int index = indexOf(metric);
+		return index < 0 ? 0l : record.parseLong(index);
+	}
+
+	@Override
+	public int compareTo(Row o) {
+		return Longs.compare(timestamp, o.getTimestampFromEpoch());
+	}
+
+	/**
+	 * Reusable single element list returned by getDimension.
+	 */
+	private static class SingleValueList extends AbstractList<String> {
+		String value;
+
+		@Override
+		public String get(int index) {
+			if (index != 0) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return value;
+		}
+
+		@Override
+		public int size() {
+			return 1;
+		}
+	}
+}
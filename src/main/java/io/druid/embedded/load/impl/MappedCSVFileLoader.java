@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import io.druid.data.input.InputRow;
+import io.druid.embedded.load.Loader;
+
+/**
+ * CSV loader for local files. File is memory mapped through FileChannel.map and decoded straight from
+ * the mapping, using same record format and reusable row as FastCSVLoader.
+ * split(n) cuts file into byte ranges at line boundaries, every range being a loader of its own, so that
+ * ranges are parsed concurrently, ex:
+ *
+ *   IndexHelper.getQueryableIndex(loader.split(numThreads), indexSchema, config)
+ *
+ * Splitting assumes quoted fields do not contain line breaks.
+ *
+ */
+public class MappedCSVFileLoader extends Loader {
+	/**
+	 * Largest byte range mapped at once (FileChannel.map is limited to Integer.MAX_VALUE bytes).
+	 */
+	static final long MAX_MAPPED_BYTES = 1024 * 1024 * 1024;
+
+	private final File file;
+	private final long start;
+	private final long end;
+	private final Charset charset;
+	private final boolean contentFingerprint;
+
+	/**
+	 * @param file : CSV file
+	 * @param columns : List of all columns in CSV file (including metric columns)
+	 * @param dims : List of dimensions, every other column is parsed as number
+	 * @param timestampDimension : Dimension which indicates timestamp field in CSV File.
+	 */
+	public MappedCSVFileLoader(File file, List<String> columns, List<String> dims, String timestampDimension) {
+		this(file, columns, dims, timestampDimension, Charsets.UTF_8);
+	}
+
+	public MappedCSVFileLoader(File file, List<String> columns, List<String> dims, String timestampDimension,
+			Charset charset) {
+		this(file, 0, file.length(), columns, dims, timestampDimension, charset, false);
+	}
+
+	private MappedCSVFileLoader(File file, long start, long end, List<String> columns, List<String> dims,
+			String timestampDimension, Charset charset, boolean contentFingerprint) {
+		super(columns, dims, timestampDimension);
+		this.file = file;
+		this.start = start;
+		this.end = end;
+		this.charset = charset;
+		this.contentFingerprint = contentFingerprint;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Same loader, whose fingerprint is computed from file content instead of file attributes.
+	 */
+	public MappedCSVFileLoader withContentFingerprint() {
+		return new MappedCSVFileLoader(file, start, end, columns, dimensions, timestampDimension, charset, true);
+	}
+
+	/**
+	 * SHA-1 of parsing settings, byte range and of path, length and last modification time of file, so that
+	 * fingerprint is computed without reading file. If {@link #withContentFingerprint()} was used, content of
+	 * byte range is hashed instead of file attributes (file is read once for that purpose), so that a copy of
+	 * file or a file rewritten with same content keeps its fingerprint.
+	 */
+	@Override
+	public String getFingerprint() throws IOException {
+		Hasher hasher = Hashing.sha1().newHasher()
+				.putString(String.valueOf(columns), Charsets.UTF_8)
+				.putString(String.valueOf(dimensions), Charsets.UTF_8)
+				.putString(String.valueOf(timestampDimension), Charsets.UTF_8)
+				.putString(charset.name(), Charsets.UTF_8)
+				.putLong(start)
+				.putLong(end);
+		if (contentFingerprint) {
+			hasher.putBytes(Files.asByteSource(file).slice(start, end - start).hash(Hashing.sha1()).asBytes());
+		} else {
+			hasher.putString(file.getCanonicalPath(), Charsets.UTF_8)
+					.putLong(file.length())
+					.putLong(file.lastModified());
+		}
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * Splits byte range of this loader in (at most) n ranges of similar size, each ending at line boundary.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public List<MappedCSVFileLoader> split(int n) {
+		Preconditions.checkArgument(n > 0, "n must be positive");
+		if (n == 1 || end - start <= 1) {
+			return Collections.singletonList(this);
+		}
+		List<MappedCSVFileLoader> ranges = new ArrayList<MappedCSVFileLoader>();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			long rangeStart = start;
+			for (int i = 1; i < n && rangeStart < end; i++) {
+				long target = start + (end - start) * i / n;
+				// scan from previous byte so that a target which already starts a line is kept
+				long rangeEnd = lineBoundaryAfter(channel, Math.max(rangeStart, target - 1));
+				if (rangeEnd > rangeStart) {
+					ranges.add(range(rangeStart, rangeEnd));
+					rangeStart = rangeEnd;
+				}
+			}
+			if (rangeStart < end) {
+				ranges.add(range(rangeStart, end));
+			}
+		} catch (IOException e) {
+			throw Throwables.propagate(e);
+		}
+		return ranges;
+	}
+
+	private MappedCSVFileLoader range(long rangeStart, long rangeEnd) {
+		return new MappedCSVFileLoader(file, rangeStart, rangeEnd, columns, dimensions, timestampDimension, charset,
+				contentFingerprint);
+	}
+
+	/**
+	 * Position following first '\n' at or after position, or end of range.
+	 */
+	private long lineBoundaryAfter(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		while (position < end) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read && position + i < end; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return end;
+	}
+
+	@Override
+	public Iterator<InputRow> iterator() {
+		if (end - start > MAX_MAPPED_BYTES) {
+			int n = (int) ((end - start + MAX_MAPPED_BYTES - 1) / MAX_MAPPED_BYTES);
+			return Iterables.concat(split(n)).iterator();
+		}
+		final MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			// mapping stays valid once channel is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		} catch (IOException e) {
+			throw Throwables.propagate(e);
+		}
+		return new FastCSVLoader.RecordIterator(
+				new CSVRecordReader(new ByteBufferReader(buffer, charset), FastCSVLoader.DEFAULT_BUFFER_SIZE),
+				new CSVRecordRow(columns, dimensions, timestampDimension), columns.size());
+	}
+
+	@Override
+	public String toString() {
+		return "MappedCSVFileLoader{file=" + file + ", start=" + start + ", end=" + end + '}';
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram in milliseconds with fixed buckets (1, 2, 5, 10, 20, 50 ... 60000, overflow).
+ * Percentiles are reported as upper bound of bucket they fall in.
+ *
+ */
+public class LatencyHistogram {
+	private static final long[] BOUNDS = {
+			1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000, Long.MAX_VALUE
+	};
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long millis) {
+		int bucket = 0;
+		while (millis > BOUNDS[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(millis);
+		long current;
+		while (millis > (current = max.get())) {
+			if (max.compareAndSet(current, millis)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile : between 0 and 100
+	 * @return upper bound of bucket containing percentile (max seen latency for overflow bucket)
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(BOUNDS[i], getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Bucket upper bounds (in ms) and count of latencies in each of them.
+	 */
+	public long[][] getBuckets() {
+		long[][] buckets = new long[BOUNDS.length][];
+		for (int i = 0; i < BOUNDS.length; i++) {
+			buckets[i] = new long[] {BOUNDS[i], counts.get(i)};
+		}
+		return buckets;
+	}
+}
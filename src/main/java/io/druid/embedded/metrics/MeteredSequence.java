@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.metrics;
+
+import io.druid.embedded.BoundedBufferPool;
+import io.druid.embedded.Utils;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.metamx.common.guava.Accumulator;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Yielder;
+import com.metamx.common.guava.YieldingAccumulator;
+
+/**
+ * Sequence which counts rows going through it and reports elapsed time once it is fully accumulated,
+ * or once its Yielder is closed. If a TakeListener is given, it is notified of processing buffers taken by
+ * the thread consuming base Sequence while it does so.
+ *
+ */
+class MeteredSequence<T> implements Sequence<T> {
+	interface Callback {
+		void onComplete(long elapsedNanos, long rows, Throwable error);
+	}
+
+	private final Sequence<T> base;
+	private final Callback callback;
+	private final BoundedBufferPool.TakeListener takeListener;
+	private final AtomicBoolean completed = new AtomicBoolean();
+
+	MeteredSequence(Sequence<T> base, Callback callback) {
+		this(base, callback, null);
+	}
+
+	MeteredSequence(Sequence<T> base, Callback callback, BoundedBufferPool.TakeListener takeListener) {
+		this.base = base;
+		this.callback = callback;
+		this.takeListener = takeListener;
+	}
+
+	@Override
+	public <OutType> OutType accumulate(OutType initValue, final Accumulator<OutType, T> accumulator) {
+		final long start = System.nanoTime();
+		final AtomicLong rows = new AtomicLong();
+		BoundedBufferPool.TakeListener previous = enter();
+		try {
+			OutType result = base.accumulate(initValue, new Accumulator<OutType, T>() {
+				@Override
+				public OutType accumulate(OutType accumulated, T in) {
+					rows.incrementAndGet();
+					return accumulator.accumulate(accumulated, in);
+				}
+			});
+			complete(start, rows, null);
+			return result;
+		} catch (RuntimeException | Error e) {
+			complete(start, rows, e);
+			throw e;
+		} finally {
+			exit(previous);
+		}
+	}
+
+	@Override
+	public <OutType> Yielder<OutType> toYielder(OutType initValue,
+			final YieldingAccumulator<OutType, T> accumulator) {
+		final long start = System.nanoTime();
+		final AtomicLong rows = new AtomicLong();
+		BoundedBufferPool.TakeListener previous = enter();
+		try {
+			return wrap(base.toYielder(initValue, new YieldingAccumulator<OutType, T>() {
+				@Override
+				public void yield() {
+					accumulator.yield();
+				}
+
+				@Override
+				public boolean yielded() {
+					return accumulator.yielded();
+				}
+
+				@Override
+				public void reset() {
+					accumulator.reset();
+				}
+
+				@Override
+				public OutType accumulate(OutType accumulated, T in) {
+					rows.incrementAndGet();
+					return accumulator.accumulate(accumulated, in);
+				}
+			}), start, rows);
+		} catch (RuntimeException | Error e) {
+			complete(start, rows, e);
+			throw e;
+		} finally {
+			exit(previous);
+		}
+	}
+
+	private <OutType> Yielder<OutType> wrap(final Yielder<OutType> yielder, final long start, final AtomicLong rows) {
+		return new Yielder<OutType>() {
+			@Override
+			public OutType get() {
+				return yielder.get();
+			}
+
+			@Override
+			public Yielder<OutType> next(OutType initValue) {
+				BoundedBufferPool.TakeListener previous = enter();
+				try {
+					return wrap(yielder.next(initValue), start, rows);
+				} catch (RuntimeException | Error e) {
+					complete(start, rows, e);
+					throw e;
+				} finally {
+					exit(previous);
+				}
+			}
+
+			@Override
+			public boolean isDone() {
+				return yielder.isDone();
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					yielder.close();
+				} finally {
+					complete(start, rows, null);
+				}
+			}
+		};
+	}
+
+	private BoundedBufferPool.TakeListener enter() {
+		return takeListener == null ? null : Utils.getBufferPool().setTakeListener(takeListener);
+	}
+
+	private void exit(BoundedBufferPool.TakeListener previous) {
+		if (takeListener != null) {
+			Utils.getBufferPool().setTakeListener(previous);
+		}
+	}
+
+	private void complete(long start, AtomicLong rows, Throwable error) {
+		if (completed.compareAndSet(false, true)) {
+			callback.onComplete(System.nanoTime() - start, rows.get(), error);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.metrics;
+
+import io.druid.embedded.BoundedBufferPool;
+import io.druid.embedded.ScanListeningSegment;
+import io.druid.embedded.Utils;
+import io.druid.query.Query;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryRunnerFactory;
+import io.druid.segment.Segment;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.base.Joiner;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.logger.Logger;
+import com.metamx.emitter.service.ServiceEmitter;
+import com.metamx.emitter.service.ServiceMetricEvent;
+
+/**
+ * Collects per query measurements of queries run through QueryHelper : wall time, time spent on every segment,
+ * rows scanned by its cursors, processing buffers taken and result size.
+ * Completed QueryStats are passed to registered listeners, aggregated in per query type latency histograms
+ * (exposed through JMX once registerMBean() is called) and emitted as "query/time" and "query/segment/time"
+ * metrics if a ServiceEmitter is set.
+ *
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+	public static final String OBJECT_NAME = "io.druid.embedded:type=QueryMetrics";
+	private static final Logger log = new Logger(QueryMetrics.class);
+
+	private final List<QueryMetricsListener> listeners = new CopyOnWriteArrayList<QueryMetricsListener>();
+	private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final AtomicLong queryCount = new AtomicLong();
+	private final AtomicLong failedQueryCount = new AtomicLong();
+	private volatile ServiceEmitter emitter;
+
+	public void addListener(QueryMetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(QueryMetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Emitter receiving query metrics, null to disable emission.
+	 */
+	public void setEmitter(ServiceEmitter emitter) {
+		this.emitter = emitter;
+	}
+
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	public void unregisterMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+	}
+
+	/**
+	 * Starts measuring a query, called before its runners are created.
+	 */
+	public QueryStats start(Query<?> query) {
+		return new QueryStats(query.getId(), query.getType(), Joiner.on(',').join(query.getDataSource().getNames()));
+	}
+
+	/**
+	 * Creates runner of one segment through factory, measuring time spent, rows produced, rows scanned by its
+	 * cursors and processing buffers taken (by the thread running it) while it runs.
+	 */
+	public <T> QueryRunner<T> decorate(QueryRunnerFactory<T, Query<T>> factory, final Segment segment,
+			final QueryStats stats) {
+		final QueryStats.SegmentStats segmentStats = stats.newSegment(segment.getIdentifier(),
+				segment.asStorageAdapter().getNumRows());
+		final QueryRunner<T> runner = factory.createRunner(ScanListeningSegment.listen(segment,
+				new ScanListeningSegment.ScanListener() {
+					@Override
+					public void onAdvance() {
+						segmentStats.addRowScanned();
+					}
+				}));
+		final BoundedBufferPool.TakeListener takeListener = new BoundedBufferPool.TakeListener() {
+			@Override
+			public void onTake(int bufferSize) {
+				segmentStats.addBufferBytes(bufferSize);
+			}
+		};
+		return new QueryRunner<T>() {
+			@Override
+			public Sequence<T> run(Query<T> query, Map<String, Object> responseContext) {
+				stats.addSegment(segmentStats);
+				// some engines take their buffer when they are run (GroupBy), others while results are consumed (TopN)
+				BoundedBufferPool pool = Utils.getBufferPool();
+				BoundedBufferPool.TakeListener previous = pool.setTakeListener(takeListener);
+				Sequence<T> results;
+				try {
+					results = runner.run(query, responseContext);
+				} finally {
+					pool.setTakeListener(previous);
+				}
+				return new MeteredSequence<T>(results, new MeteredSequence.Callback() {
+					@Override
+					public void onComplete(long elapsedNanos, long rows, Throwable error) {
+						segmentStats.complete(elapsedNanos, rows);
+					}
+				}, takeListener);
+			}
+		};
+	}
+
+	/**
+	 * Publishes stats once final results of query are consumed.
+	 */
+	public <T> Sequence<T> complete(Sequence<T> results, final QueryStats stats) {
+		return new MeteredSequence<T>(results, new MeteredSequence.Callback() {
+			@Override
+			public void onComplete(long elapsedNanos, long rows, Throwable error) {
+				stats.complete(rows, error);
+				publish(stats);
+			}
+		});
+	}
+
+	private void publish(QueryStats stats) {
+		queryCount.incrementAndGet();
+		if (!stats.isSuccess()) {
+			failedQueryCount.incrementAndGet();
+		}
+		getLatencyHistogram(stats.getQueryType()).record(stats.getWallTimeMillis());
+
+		ServiceEmitter emitter = this.emitter;
+		if (emitter != null) {
+			ServiceMetricEvent.Builder builder = ServiceMetricEvent.builder()
+					.setDimension("type", stats.getQueryType())
+					.setDimension("dataSource", stats.getDataSource())
+					.setDimension("id", String.valueOf(stats.getQueryId()))
+					.setDimension("success", String.valueOf(stats.isSuccess()));
+			emitter.emit(builder.build("query/time", stats.getWallTimeMillis()));
+			for (QueryStats.SegmentStats segment : stats.getSegments()) {
+				emitter.emit(builder.setDimension("segment", segment.getSegmentId())
+						.build("query/segment/time", TimeUnit.NANOSECONDS.toMillis(segment.getTimeNanos())));
+			}
+		}
+
+		for (QueryMetricsListener listener : listeners) {
+			try {
+				listener.onQueryComplete(stats);
+			} catch (RuntimeException e) {
+				log.warn(e, "Query metrics listener [%s] failed", listener);
+			}
+		}
+	}
+
+	/**
+	 * Latency histogram of query type (ex: "groupBy", "topN").
+	 */
+	public LatencyHistogram getLatencyHistogram(String queryType) {
+		LatencyHistogram histogram = latencies.get(queryType);
+		if (histogram == null) {
+			latencies.putIfAbsent(queryType, new LatencyHistogram());
+			histogram = latencies.get(queryType);
+		}
+		return histogram;
+	}
+
+	@Override
+	public long getQueryCount() {
+		return queryCount.get();
+	}
+
+	@Override
+	public long getFailedQueryCount() {
+		return failedQueryCount.get();
+	}
+
+	@Override
+	public Map<String, Long> getQueryCountByType() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().getCount());
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getMeanLatencyByType() {
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			means.put(entry.getKey(), entry.getValue().getMean());
+		}
+		return means;
+	}
+
+	@Override
+	public Map<String, Long> getP50LatencyByType() {
+		return getPercentileByType(50);
+	}
+
+	@Override
+	public Map<String, Long> getP99LatencyByType() {
+		return getPercentileByType(99);
+	}
+
+	@Override
+	public Map<String, Long> getMaxLatencyByType() {
+		Map<String, Long> max = new TreeMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			max.put(entry.getKey(), entry.getValue().getMax());
+		}
+		return max;
+	}
+
+	private Map<String, Long> getPercentileByType(double percentile) {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getPercentile(percentile));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measurements of one query execution, handed to {@link QueryMetricsListener} once result Sequence is
+ * consumed (or fails).
+ *
+ */
+public class QueryStats {
+	private final String queryId;
+	private final String queryType;
+	private final String dataSource;
+	private final long startNanos = System.nanoTime();
+	private final List<SegmentStats> segments = Collections.synchronizedList(new ArrayList<SegmentStats>());
+	private long wallTimeNanos;
+	private long resultRows;
+	private Throwable error;
+
+	QueryStats(String queryId, String queryType, String dataSource) {
+		this.queryId = queryId;
+		this.queryType = queryType;
+		this.dataSource = dataSource;
+	}
+
+	SegmentStats newSegment(String segmentId, long numRows) {
+		return new SegmentStats(segmentId, numRows);
+	}
+
+	/**
+	 * Called once runner of segment is run.
+	 */
+	void addSegment(SegmentStats stats) {
+		segments.add(stats);
+	}
+
+	void complete(long resultRows, Throwable error) {
+		this.wallTimeNanos = System.nanoTime() - startNanos;
+		this.resultRows = resultRows;
+		this.error = error;
+	}
+
+	public String getQueryId() {
+		return queryId;
+	}
+
+	public String getQueryType() {
+		return queryType;
+	}
+
+	public String getDataSource() {
+		return dataSource;
+	}
+
+	/**
+	 * Time from query submission until its results are consumed.
+	 */
+	public long getWallTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(wallTimeNanos);
+	}
+
+	public long getWallTimeNanos() {
+		return wallTimeNanos;
+	}
+
+	public List<SegmentStats> getSegments() {
+		synchronized (segments) {
+			return new ArrayList<SegmentStats>(segments);
+		}
+	}
+
+	/**
+	 * Rows scanned by cursors of query on all its segments (rows filtered out through indexes are not scanned).
+	 * Engines reading indexes without cursors (Search, SegmentMetadata) scan no rows.
+	 */
+	public long getRowsScanned() {
+		long rows = 0;
+		for (SegmentStats segment : getSegments()) {
+			rows += segment.getRowsScanned();
+		}
+		return rows;
+	}
+
+	/**
+	 * Bytes of processing buffers taken from pool by this query on all its segments (GroupBy takes a buffer per
+	 * segment, TopN per cursor). Buffers taken by concurrent queries are not included.
+	 */
+	public long getBufferBytes() {
+		long bytes = 0;
+		for (SegmentStats segment : getSegments()) {
+			bytes += segment.getBufferBytes();
+		}
+		return bytes;
+	}
+
+	public long getResultRows() {
+		return resultRows;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	public Throwable getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryStats{" +
+				"queryId=" + queryId +
+				", queryType=" + queryType +
+				", dataSource=" + dataSource +
+				", wallTimeMillis=" + getWallTimeMillis() +
+				", segments=" + getSegments() +
+				", rowsScanned=" + getRowsScanned() +
+				", bufferBytes=" + getBufferBytes() +
+				", resultRows=" + resultRows +
+				", success=" + isSuccess() +
+				'}';
+	}
+
+	/**
+	 * Time spent, rows scanned and produced and buffers taken by query on one segment.
+	 */
+	public static class SegmentStats {
+		private final String segmentId;
+		private final long numRows;
+		private final AtomicLong bufferBytes = new AtomicLong();
+		// only incremented by the thread scanning segment, read once it is done
+		private long rowsScanned;
+		private volatile long timeNanos;
+		private volatile long resultRows;
+
+		SegmentStats(String segmentId, long numRows) {
+			this.segmentId = segmentId;
+			this.numRows = numRows;
+		}
+
+		void addRowScanned() {
+			rowsScanned++;
+		}
+
+		void addBufferBytes(long bytes) {
+			bufferBytes.addAndGet(bytes);
+		}
+
+		void complete(long timeNanos, long resultRows) {
+			this.timeNanos = timeNanos;
+			this.resultRows = resultRows;
+		}
+
+		public String getSegmentId() {
+			return segmentId;
+		}
+
+		/**
+		 * Rows of segment.
+		 */
+		public long getNumRows() {
+			return numRows;
+		}
+
+		public long getRowsScanned() {
+			return rowsScanned;
+		}
+
+		public long getBufferBytes() {
+			return bufferBytes.get();
+		}
+
+		public long getTimeNanos() {
+			return timeNanos;
+		}
+
+		public long getResultRows() {
+			return resultRows;
+		}
+
+		@Override
+		public String toString() {
+			return "{segment=" + segmentId + ", rows=" + numRows + ", rowsScanned=" + rowsScanned + ", bufferBytes="
+					+ getBufferBytes() + ", timeMillis=" + TimeUnit.NANOSECONDS.toMillis(timeNanos) + ", resultRows="
+					+ resultRows + "}";
+		}
+	}
+}
@@ -16,14 +16,26 @@
 
 package io.druid.embedded;
 
+import io.druid.collections.ResourceHolder;
+import io.druid.data.input.InputRow;
+import io.druid.data.input.MapBasedRow;
 import io.druid.data.input.Row;
 import io.druid.data.input.impl.DimensionSchema;
 import io.druid.data.input.impl.DimensionsSpec;
 import io.druid.data.input.impl.DimensionSchema.ValueType;
 import io.druid.data.input.impl.StringDimensionSchema;
+import io.druid.embedded.load.BatchLoader;
 import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.RowBlock;
 import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.embedded.load.impl.MappedCSVFileLoader;
+import io.druid.embedded.metrics.QueryMetricsListener;
+import io.druid.embedded.metrics.QueryStats;
 import io.druid.granularity.QueryGranularity;
+import io.druid.jackson.DefaultObjectMapper;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.QueryInterruptedException;
 import io.druid.query.Result;
 import io.druid.query.aggregation.AggregatorFactory;
 import io.druid.query.aggregation.DoubleMaxAggregatorFactory;
@@ -37,28 +49,55 @@ import io.druid.query.aggregation.histogram.ApproximateHistogramAggregatorFactor
 import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingAggregatorFactory;
 import io.druid.query.aggregation.histogram.QuantilePostAggregator;
 import io.druid.query.aggregation.histogram.QuantilesPostAggregator;
+import io.druid.query.aggregation.hyperloglog.HyperUniquesAggregatorFactory;
 import io.druid.query.filter.DimFilter;
 import io.druid.query.filter.DimFilters;
 import io.druid.query.groupby.GroupByQuery;
 import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.query.timeseries.TimeseriesQuery;
 import io.druid.query.topn.TopNQuery;
 import io.druid.query.topn.TopNQueryBuilder;
+import io.druid.query.topn.TopNResultValue;
+import io.druid.segment.IncrementalIndexSegment;
 import io.druid.segment.QueryableIndex;
+import io.druid.segment.Segment;
+import io.druid.segment.incremental.IncrementalIndex;
 import io.druid.segment.incremental.IncrementalIndexSchema;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.metamx.common.Granularity;
+import com.metamx.common.ISE;
 import com.metamx.common.guava.Sequence;
 import com.metamx.common.guava.Sequences;
 
@@ -69,8 +108,18 @@ public class EmbeddedDruidTest {
 
 	public static QueryableIndex createDruidSegments() throws IOException {
 	//  Create druid segments from raw data
+	    QueryableIndex index = IndexHelper.getQueryableIndex(createLoader(), createIndexSchema());
+	    return index;
+	}
+
+	public static Loader createLoader() throws IOException {
 		Reader reader = new BufferedReader(new FileReader(new File("./src/test/resources/report.csv")));
 
+	    List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+	    return new CSVLoader(reader, columns, columns, "TS");
+	}
+
+	public static IncrementalIndexSchema createIndexSchema() {
 	    List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
 	    List<String> exclusions = Arrays.asList("_Timestamp", "_Machine", "_ThreadId", "_Query");
 	    List<String> metrics = Arrays.asList("value", "count", "min", "max", "sum");
@@ -80,7 +129,6 @@ public class EmbeddedDruidTest {
 	    }
 	    dimensions.removeAll(exclusions);
 	    dimensions.removeAll(metrics);
-	    Loader loader = new CSVLoader(reader, columns, columns, "TS");
 
 	    DimensionsSpec dimensionsSpec = new DimensionsSpec(dimensions, null, null);
 	    AggregatorFactory[] metricsAgg = new AggregatorFactory[] {
@@ -89,11 +137,45 @@ public class EmbeddedDruidTest {
 	        new LongMinAggregatorFactory("agg_min", "min"),
 	        new DoubleSumAggregatorFactory("agg_sum", "sum"),
 	    };
-	    IncrementalIndexSchema indexSchema = new IncrementalIndexSchema(0, QueryGranularity.fromString("ALL"), dimensionsSpec, metricsAgg);
-	    QueryableIndex index = IndexHelper.getQueryableIndex(loader, indexSchema);
-	    return index;
+	    return new IncrementalIndexSchema(0, QueryGranularity.fromString("ALL"), dimensionsSpec, metricsAgg);
+	}
+
+	public static GroupByQuery createGroupByQuery() {
+		return createGroupByQuery("agg_sum");
+	}
+
+	public static GroupByQuery createGroupByQuery(String sumName) {
+		List<DimFilter> filters = new ArrayList<DimFilter>();
+		filters.add(DimFilters.dimEquals("report", "URLTransaction"));
+		filters.add(DimFilters.dimEquals("pool", "r1cart"));
+		filters.add(DimFilters.dimEquals("metric", "Duration"));
+		return GroupByQuery.builder()
+	      .setDataSource("test")
+	      .setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+	      .setGranularity(QueryGranularity.fromString("NONE"))
+	      .addDimension("URL")
+	      .addAggregator(new LongSumAggregatorFactory("agg_count", "agg_count"))
+	      .addAggregator(new LongMaxAggregatorFactory("agg_max", "agg_max"))
+	      .addAggregator(new LongMinAggregatorFactory("agg_min", "agg_min"))
+	      .addAggregator(new DoubleSumAggregatorFactory(sumName, "agg_sum"))
+	      .setDimFilter(DimFilters.and(filters))
+	      .build();
 	}
-	
+
+	public static void assertGroupByResults(List<Row> results) {
+	    Assert.assertEquals(results.size(), 2);
+	    Row abc = results.get(0).getDimension("URL").get(0).equals("abc") ? results.get(0) : results.get(1);
+	    Row def = abc == results.get(0) ? results.get(1) : results.get(0);
+	    Assert.assertEquals(abc.getLongMetric("agg_sum"), 247);
+	    Assert.assertEquals(abc.getLongMetric("agg_min"), 0);
+	    Assert.assertEquals(abc.getLongMetric("agg_max"), 124);
+	    Assert.assertEquals(abc.getLongMetric("agg_count"), 12);
+	    Assert.assertEquals(def.getLongMetric("agg_sum"), 123);
+	    Assert.assertEquals(def.getLongMetric("agg_min"), 0);
+	    Assert.assertEquals(def.getLongMetric("agg_max"), 123);
+	    Assert.assertEquals(def.getLongMetric("agg_count"), 3);
+	}
+
 	@Test
 	public void groupByQuery() throws IOException {
 		QueryableIndex index = createDruidSegments();
@@ -141,9 +223,1025 @@ public class EmbeddedDruidTest {
 	    }
 	}
 
+	@Test
+	public void groupByQueryOnIncrementalIndex() throws IOException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+	    ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+	    assertGroupByResults(results);
+	    index.close();
+	}
+
+	@Test
+	public void groupByQueryOnMergedSpills() throws IOException {
+		IngestionConfig config = IngestionConfig.builder().withMaxRowsInMemory(1).withNumThreads(2).build();
+		QueryableIndex index = IndexHelper.getQueryableIndex(createLoader(), createIndexSchema(), config);
+	    Assert.assertEquals(index.getNumRows(), 3);
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+	    ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+	    assertGroupByResults(results);
+	}
+
+	@Test
+	public void groupByQueryWithIndexSpec() throws IOException {
+		IngestionConfig config = IngestionConfig.builder()
+				.withIndexSpec(IndexHelper.createIndexSpec("roaring", "uncompressed", "lz4"))
+				.build();
+		File dir = Files.createTempDir();
+		try {
+			File indexDir = new File(dir, "index");
+			QueryableIndex index = IndexHelper.getQueryableIndex(Arrays.asList(createLoader()), createIndexSchema(),
+					config, new IngestionStats(), indexDir);
+			@SuppressWarnings("unchecked")
+			Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+			assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+			index.close();
+
+			Map<String, Long> sizes = IndexHelper.getColumnSizes(indexDir);
+			Assert.assertTrue(sizes.get("URL") > 0);
+			Assert.assertTrue(sizes.get("agg_sum") > 0);
+		} finally {
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	@Test
+	public void groupByQueryOnUnmergedSpills() throws IOException {
+		IngestionConfig config = IngestionConfig.builder().withMaxRowsInMemory(1).build();
+		IngestionStats stats = new IngestionStats();
+		List<QueryableIndex> indexes =
+				IndexHelper.getQueryableIndexes(Arrays.asList(createLoader()), createIndexSchema(), config, stats);
+		Assert.assertEquals(indexes.size(), 3);
+		Assert.assertEquals(stats.getStoredRows(), 3);
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), QueryHelper.toSegments(indexes));
+		assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+		for (QueryableIndex index : indexes) {
+			index.close();
+		}
+	}
+
+	@Test
+	public void defaultSegmentDirDeletedOnClose() throws IOException {
+		File dir = Files.createTempDir();
+		String segmentDir = System.getProperty("druid.segment.dir");
+		System.setProperty("druid.segment.dir", dir.getPath());
+		try {
+			QueryableIndex index = IndexHelper.getQueryableIndex(createLoader(), createIndexSchema());
+			Assert.assertEquals(dir.list().length, 1);
+			index.close();
+			Assert.assertEquals(dir.list().length, 0);
+
+			// unmerged spills share one directory, deleted once all of them are closed
+			IngestionConfig config = IngestionConfig.builder().withMaxRowsInMemory(1).build();
+			List<QueryableIndex> indexes = IndexHelper.getQueryableIndexes(Arrays.asList(createLoader()),
+					createIndexSchema(), config, new IngestionStats());
+			Assert.assertEquals(indexes.size(), 3);
+			for (QueryableIndex spill : indexes) {
+				Assert.assertEquals(dir.list().length, 1);
+				spill.close();
+			}
+			Assert.assertEquals(dir.list().length, 0);
+		} finally {
+			if (segmentDir == null) {
+				System.clearProperty("druid.segment.dir");
+			} else {
+				System.setProperty("druid.segment.dir", segmentDir);
+			}
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	@Test
+	public void timePartitionsShareRowsInMemory() throws IOException {
+		List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+		// rows alternate between hours : buckets are persisted once they hold 3 rows together
+		Loader loader = new CSVLoader(new StringReader(
+				"slc,r1cart,URLTransaction,abc,1000,Duration,1,1,0,1,1\n"
+				+ "slc,r1cart,URLTransaction,abc,7200000,Duration,1,2,0,1,1\n"
+				+ "phx,r1cart,URLTransaction,abc,1000,Duration,1,4,0,1,1\n"
+				+ "phx,r1cart,URLTransaction,abc,7200000,Duration,1,8,0,1,1\n"
+				+ "lvs,r1cart,URLTransaction,abc,1000,Duration,1,16,0,1,1\n"), columns, columns, "TS");
+		IngestionConfig config = IngestionConfig.builder()
+				.withSegmentGranularity(Granularity.HOUR)
+				.withQueryGranularity(QueryGranularity.fromString("NONE"))
+				.withMaxRowsInMemory(3)
+				.build();
+		IngestionStats stats = new IngestionStats();
+		List<QueryableIndex> indexes =
+				IndexHelper.getQueryableIndexes(Arrays.asList(loader), createIndexSchema(), config, stats);
+		try {
+			Assert.assertEquals(indexes.size(), 2);
+			Assert.assertEquals(indexes.get(0).getNumRows(), 3);
+			Assert.assertEquals(indexes.get(1).getNumRows(), 2);
+			Assert.assertEquals(stats.getStoredRows(), 5);
+		} finally {
+			for (QueryableIndex index : indexes) {
+				index.close();
+			}
+		}
+	}
+
+	@Test
+	public void groupByQueryOnTimePartitions() throws IOException {
+		List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+		Loader loader = new CSVLoader(new StringReader(
+				"slc,r1cart,URLTransaction,abc,1000,Duration,1,1,0,1,1\n"
+				+ "slc,r1cart,URLTransaction,abc,7200000,Duration,1,2,0,1,1\n"
+				+ "phx,r1cart,URLTransaction,abc,7200000,Duration,1,4,0,1,1\n"), columns, columns, "TS");
+		IngestionConfig config = IngestionConfig.builder()
+				.withSegmentGranularity(Granularity.HOUR)
+				.withQueryGranularity(QueryGranularity.fromString("NONE"))
+				.withMaxRowsInMemory(1)
+				.build();
+		List<QueryableIndex> indexes =
+				IndexHelper.getQueryableIndexes(Arrays.asList(loader), createIndexSchema(), config, new IngestionStats());
+		try {
+			// one segment per hour, whatever the number of intermediate persists
+			Assert.assertEquals(indexes.size(), 2);
+			Assert.assertEquals(indexes.get(0).getNumRows(), 1);
+			Assert.assertEquals(indexes.get(1).getNumRows(), 2);
+
+			GroupByQuery query = createGroupByQuery()
+					.withQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(7200000, 10800000)));
+			List<Segment> segments = QueryHelper.toSegments(indexes);
+			Assert.assertEquals(QueryHelper.prune(query, segments).size(), 1);
+			@SuppressWarnings("unchecked")
+			Sequence<Row> sequence = QueryHelper.run(query, segments);
+			List<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+			Assert.assertEquals(results.size(), 1);
+			Assert.assertEquals(results.get(0).getLongMetric("agg_count"), 6);
+		} finally {
+			for (QueryableIndex index : indexes) {
+				index.close();
+			}
+		}
+	}
+
+	private static BatchLoader createBatchLoader(int blockSize) throws IOException {
+		final List<String> lines = FileUtils.readLines(new File("./src/test/resources/report.csv"));
+		final List<String> dims = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric");
+		List<String> metrics = Arrays.asList("value", "count", "min", "max", "sum");
+		return new BatchLoader(dims, metrics, blockSize) {
+			int line;
+
+			@Override
+			public boolean next(RowBlock block) {
+				int size = 0;
+				for (; size < block.getCapacity() && line < lines.size(); size++, line++) {
+					String[] fields = lines.get(line).split(",");
+					block.getTimestamps()[size] = Long.parseLong(fields[4]);
+					for (int d = 0; d < dims.size(); d++) {
+						List<String> dictionary = block.getDictionary(d);
+						int id = dictionary.indexOf(fields[d]);
+						if (id < 0) {
+							id = dictionary.size();
+							dictionary.add(fields[d]);
+						}
+						block.getDimensionIds(d)[size] = id;
+					}
+					for (int m = 0; m < 5; m++) {
+						block.getMetricValues(m)[size] = Double.parseDouble(fields[dims.size() + m]);
+					}
+				}
+				block.setSize(size);
+				return size > 0;
+			}
+		};
+	}
+
+	@Test
+	public void groupByQueryOnBatchLoader() throws IOException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createBatchLoader(2), createIndexSchema());
+		Assert.assertEquals(index.size(), 3);
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+		assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+		index.close();
+
+		// caller managed index drops and counts rows as loader based ingestion does
+		BatchLoader loader = createBatchLoader(3);
+		RowBlock block = loader.newBlock();
+		Assert.assertTrue(loader.next(block));
+		IngestionConfig config = IngestionConfig.builder().withMinTimestamp(1235).build();
+		IngestionStats stats = new IngestionStats();
+		IncrementalIndex<?> managed = IndexHelper.newIncrementalIndex(createIndexSchema(), config);
+		Assert.assertEquals(IndexHelper.addBlock(managed, block, createIndexSchema(), config, stats), 1);
+		Assert.assertEquals(managed.size(), 1);
+		Assert.assertEquals(stats.getInputRows(), 3);
+		Assert.assertEquals(stats.getDroppedRows(), 2);
+		managed.close();
+	}
+
+	@Test
+	public void groupByQueryOnOffheapIndex() throws IOException {
+		IngestionConfig config = IngestionConfig.builder().withOffheap(true).build();
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema(), config);
+	    Assert.assertTrue(Utils.getOffheapBufferPool().getBuffersInUse() > 0);
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+	    ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+	    assertGroupByResults(results);
+	    index.close();
+	    Assert.assertEquals(Utils.getOffheapBufferPool().getBuffersInUse(), 0);
+	}
+
+	@Test
+	public void bufferPoolTakeTimesOut() {
+		BoundedBufferPool pool = new BoundedBufferPool(1024, 1, false, 50);
+		ResourceHolder<ByteBuffer> holder = pool.take();
+		long start = System.currentTimeMillis();
+		try {
+			pool.take();
+			Assert.fail("pool should be exhausted");
+		} catch (ISE e) {
+			Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+		}
+		Assert.assertEquals(pool.getWaitCount(), 1);
+		Assert.assertEquals(pool.getRejectCount(), 1);
+		Assert.assertEquals(pool.getBuffersInUse(), 1);
+		holder.close();
+		pool.take().close();
+		Assert.assertEquals(pool.getBuffersInUse(), 0);
+		Assert.assertEquals(pool.getBuffersAllocated(), 1);
+	}
+
+	@Test
+	public void groupByAndTopNShareProcessingBufferPool() throws IOException {
+		BoundedBufferPool pool = Utils.getBufferPool();
+		Assert.assertSame(Utils.getBufferPool(), pool);
+		Assert.assertEquals(pool.getBufferSize(),
+				Integer.getInteger("druid.processing.buffer.sizeBytes", 128 * 1024 * 1024).intValue());
+		Assert.assertEquals(pool.getMaxBuffers(), Integer.getInteger("druid.processing.numBuffers",
+				Runtime.getRuntime().availableProcessors() + 1).intValue());
+		QueryableIndex index = createDruidSegments();
+		// both engines take their buffer from the process wide pool and give it back once results are read
+		long takeCount = pool.getTakeCount();
+		@SuppressWarnings("unchecked")
+		Sequence<Row> groupBy = QueryHelper.run(createGroupByQuery(), index);
+		assertGroupByResults(Sequences.toList(groupBy, Lists.<Row>newArrayList()));
+		Assert.assertTrue(pool.getTakeCount() > takeCount);
+		Assert.assertEquals(pool.getBuffersInUse(), 0);
+		takeCount = pool.getTakeCount();
+		@SuppressWarnings("unchecked")
+		Sequence<Result> topN = QueryHelper.run(createTopNQuery(), index);
+		Assert.assertEquals(Sequences.toList(topN, Lists.<Result>newArrayList()).size(), 1);
+		Assert.assertTrue(pool.getTakeCount() > takeCount);
+		Assert.assertEquals(pool.getBuffersInUse(), 0);
+		index.close();
+	}
+
+	@Test
+	public void offheapIngestionExhaustsBufferPool() throws IOException {
+		IncrementalIndexSchema schema = createIndexSchema();
+		int rowSize = 0;
+		for (AggregatorFactory metric : schema.getMetrics()) {
+			rowSize += metric.getMaxIntermediateSize();
+		}
+		// room for aggregates of a single row while report.csv has 3 distinct rows
+		BoundedBufferPool pool = new BoundedBufferPool(rowSize, 1, true, 50);
+		BoundedBufferPool previous = Utils.setOffheapBufferPool(pool);
+		try {
+			IngestionConfig config = IngestionConfig.builder().withOffheap(true).build();
+			IndexHelper.getIncrementalIndex(createLoader(), schema, config);
+			Assert.fail("off-heap buffers should be exhausted");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(Throwables.getRootCause(e) instanceof ISE, e.toString());
+			Assert.assertEquals(pool.getRejectCount(), 1);
+			Assert.assertEquals(pool.getWaitCount(), 1);
+			// failed index gave its buffer back
+			Assert.assertEquals(pool.getBuffersInUse(), 0);
+		} finally {
+			Utils.setOffheapBufferPool(previous);
+		}
+	}
+
+	@Test
+	public void groupByQueryOnMappedFilePartitions() throws IOException {
+	    List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+	    MappedCSVFileLoader loader =
+	        new MappedCSVFileLoader(new File("./src/test/resources/report.csv"), columns, columns, "TS");
+	    List<MappedCSVFileLoader> partitions = loader.split(2);
+	    Assert.assertEquals(partitions.size(), 2);
+		QueryableIndex index = IndexHelper.getQueryableIndex(partitions, createIndexSchema(), IngestionConfig.DEFAULT);
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+	    ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+	    assertGroupByResults(results);
+	}
+
+	@Test
+	public void groupByQueryWithColumnCache() throws IOException {
+		int sizeBytes = IndexHelper.getColumnCacheSizeBytes();
+		IndexHelper.setColumnCacheSizeBytes(64 * 1024);
+		try {
+			QueryableIndex index = createDruidSegments();
+			// cache is created per scan, second query must read same values again
+			for (int i = 0; i < 2; i++) {
+				@SuppressWarnings("unchecked")
+				Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+				assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+			}
+		} finally {
+			IndexHelper.setColumnCacheSizeBytes(sizeBytes);
+		}
+	}
+
+	@Test
+	public void groupByQueryThroughResultCache() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		QueryResultCache cache = new QueryResultCache(10, 1000);
+	    for (int i = 0; i < 2; i++) {
+	    	@SuppressWarnings("unchecked")
+	    	Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index, cache);
+	    	assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+	    }
+	    // id and context do not change results, same entry is used
+	    Query<Row> query = createGroupByQuery().withId("cached")
+	    		.withOverriddenContext(ImmutableMap.<String, Object>of("timeout", 60000, "priority", 1));
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> sequence = QueryHelper.run(query, index, cache);
+	    assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+	    Assert.assertEquals(cache.getMissCount(), 1);
+	    Assert.assertEquals(cache.getHitCount(), 2);
+	    // only output name differs, results are labelled differently so entry must not be shared
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> renamed = QueryHelper.run(createGroupByQuery("agg_total"), index, cache);
+	    List<Row> rows = Sequences.toList(renamed, Lists.<Row>newArrayList());
+	    Assert.assertEquals(cache.getMissCount(), 2);
+	    Assert.assertEquals(cache.getNumEntries(), 2);
+	    Assert.assertEquals(rows.size(), 2);
+	    for (Row row : rows) {
+	    	Map<String, Object> event = ((MapBasedRow) row).getEvent();
+	    	Assert.assertTrue(event.containsKey("agg_total"));
+	    	Assert.assertFalse(event.containsKey("agg_sum"));
+	    }
+	    cache.invalidate(index);
+	    Assert.assertEquals(cache.getNumEntries(), 0);
+	}
+
+	@Test
+	public void groupByQueryOnMultipleSegments() throws IOException {
+	    List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+	    MappedCSVFileLoader loader =
+	        new MappedCSVFileLoader(new File("./src/test/resources/report.csv"), columns, columns, "TS");
+	    List<Segment> segments = new ArrayList<Segment>();
+	    for (MappedCSVFileLoader partition : loader.split(3)) {
+	    	segments.add(new IncrementalIndexSegment(
+	    			IndexHelper.getIncrementalIndex(partition, createIndexSchema()), partition.toString()));
+	    }
+	    Assert.assertEquals(segments.size(), 3);
+	    @SuppressWarnings("unchecked")
+	    Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), segments);
+	    ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+	    assertGroupByResults(results);
+	}
+
+	@Test
+	public void groupByQueryMetrics() throws IOException {
+		final List<QueryStats> completed = new ArrayList<QueryStats>();
+		QueryMetricsListener listener = new QueryMetricsListener() {
+			@Override
+			public void onQueryComplete(QueryStats stats) {
+				completed.add(stats);
+			}
+		};
+		QueryHelper.getMetrics().addListener(listener);
+		try {
+			IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+			@SuppressWarnings("unchecked")
+			Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+			Assert.assertTrue(completed.isEmpty());
+			assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+			index.close();
+		} finally {
+			QueryHelper.getMetrics().removeListener(listener);
+		}
+		Assert.assertEquals(completed.size(), 1);
+		QueryStats stats = completed.get(0);
+		Assert.assertTrue(stats.isSuccess());
+		Assert.assertEquals(stats.getQueryType(), "groupBy");
+		Assert.assertEquals(stats.getDataSource(), "test");
+		Assert.assertEquals(stats.getResultRows(), 2);
+		Assert.assertEquals(stats.getSegments().size(), 1);
+		// all 3 rows match filters, GroupBy takes one buffer per segment
+		Assert.assertEquals(stats.getRowsScanned(), 3);
+		Assert.assertEquals(stats.getSegments().get(0).getRowsScanned(), 3);
+		Assert.assertEquals(stats.getBufferBytes(), Utils.getBufferPool().getBufferSize());
+		Assert.assertTrue(QueryHelper.getMetrics().getQueryCountByType().get("groupBy") > 0);
+	}
+
+	@Test
+	public void groupByQueryStreaming() throws IOException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		Query<Row> query = createGroupByQuery().withId("streamed-query");
+		final List<Row> rows = new ArrayList<Row>();
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(query, index);
+		long count = QueryResults.forEach(sequence, new QueryResults.RowCallback<Row>() {
+			@Override
+			public boolean onRow(Row row) {
+				rows.add(row);
+				return false;
+			}
+		});
+		Assert.assertEquals(count, 1);
+		Assert.assertEquals(rows.size(), 1);
+		// early termination closes query
+		Assert.assertFalse(QueryHelper.getQueryWatcher().getRunningQueries().contains("streamed-query"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		@SuppressWarnings("unchecked")
+		Sequence<Row> results = QueryHelper.run(createGroupByQuery(), index);
+		Assert.assertEquals(QueryResults.writeJson(results, out), 2);
+		List<?> json = new ObjectMapper().readValue(out.toByteArray(), List.class);
+		Assert.assertEquals(json.size(), 2);
+		index.close();
+	}
+
+	@Test
+	public void earlyTerminationStopsScan() throws IOException {
+		List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			csv.append("slc,r1cart,URLTransaction,abc,").append(1000 + i).append(",Duration,1,1,0,1,1\n");
+		}
+		IncrementalIndexSchema schema = new IncrementalIndexSchema(0, QueryGranularity.fromString("NONE"),
+				createIndexSchema().getDimensionsSpec(), createIndexSchema().getMetrics());
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(
+				new CSVLoader(new StringReader(csv.toString()), columns, columns, "TS"), schema);
+		final AtomicInteger advances = new AtomicInteger();
+		Segment segment = ScanListeningSegment.listen(new IncrementalIndexSegment(index, "counted"),
+				new ScanListeningSegment.ScanListener() {
+					@Override
+					public void onAdvance() {
+						advances.incrementAndGet();
+					}
+				});
+		// one result (and one row scanned) per millisecond
+		TimeseriesQuery query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("NONE"))
+				.aggregators(Arrays.<AggregatorFactory>asList(new LongSumAggregatorFactory("agg_count", "agg_count")))
+				.build();
+		try {
+			@SuppressWarnings("unchecked")
+			Sequence<Object> results = QueryHelper.run(query, segment);
+			long count = QueryResults.forEach(results, new QueryResults.RowCallback<Object>() {
+				@Override
+				public boolean onRow(Object row) {
+					return false;
+				}
+			});
+			Assert.assertEquals(count, 1);
+			// rows of later results were never scanned
+			Assert.assertTrue(advances.get() < 10, "scanned " + advances.get() + " rows");
+			Assert.assertEquals(Utils.getBufferPool().getBuffersInUse(), 0);
+
+			// limit is checked before next row is pulled
+			advances.set(0);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Assert.assertEquals(QueryResults.write(QueryHelper.run(query, segment), out, new DefaultObjectMapper(), 0), 0);
+			Assert.assertEquals(advances.get(), 0);
+			Assert.assertEquals(new ObjectMapper().readValue(out.toByteArray(), List.class).size(), 0);
+			out.reset();
+			Assert.assertEquals(QueryResults.write(QueryHelper.run(query, segment), out, new DefaultObjectMapper(), 2), 2);
+			Assert.assertEquals(advances.get(), 2);
+			Assert.assertEquals(new ObjectMapper().readValue(out.toByteArray(), List.class).size(), 2);
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	public void queryRegisteredOnlyWhileConsumed() throws IOException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		Query<Row> query = createGroupByQuery().withId("lazy-query");
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(query, index);
+		// not running until its results are consumed
+		Assert.assertFalse(QueryHelper.getQueryWatcher().getRunningQueries().contains("lazy-query"));
+		Assert.assertEquals(Sequences.toList(sequence, Lists.<Row>newArrayList()).size(), 2);
+		Assert.assertFalse(QueryHelper.getQueryWatcher().getRunningQueries().contains("lazy-query"));
+		Assert.assertFalse(QueryHelper.cancel("lazy-query"));
+		index.close();
+	}
+
+	/**
+	 * Segment of index whose scan blocks on its first row until release is counted down, like a long scan.
+	 */
+	private static Segment createBlockingSegment(IncrementalIndex<?> index, final CountDownLatch scanning,
+			final CountDownLatch release, final AtomicInteger advances) {
+		return ScanListeningSegment.listen(new IncrementalIndexSegment(index, "blocking"),
+				new ScanListeningSegment.ScanListener() {
+					@Override
+					public void onAdvance() {
+						if (advances.incrementAndGet() == 1) {
+							scanning.countDown();
+							Uninterruptibles.awaitUninterruptibly(release);
+						}
+					}
+				});
+	}
+
+	@Test
+	public void queryCancelDuringSegmentScan() throws IOException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		final CountDownLatch scanning = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger buffersWhileScanning = new AtomicInteger(-1);
+		AtomicInteger advances = new AtomicInteger();
+		Query<Row> query = createGroupByQuery().withId("scanning-query");
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(query, createBlockingSegment(index, scanning, release, advances));
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Uninterruptibles.awaitUninterruptibly(scanning);
+				buffersWhileScanning.set(Utils.getBufferPool().getBuffersInUse());
+				QueryHelper.cancel("scanning-query");
+				release.countDown();
+			}
+		}).start();
+		try {
+			Sequences.toList(sequence, Lists.<Row>newArrayList());
+			Assert.fail("cancelled query should not return results");
+		} catch (QueryInterruptedException e) {
+			Assert.assertTrue(e.getCause() instanceof CancellationException);
+		} finally {
+			release.countDown();
+			index.close();
+		}
+		// scan stopped on the row it was cancelled at, with its buffer given back
+		Assert.assertEquals(advances.get(), 1);
+		Assert.assertEquals(buffersWhileScanning.get(), 1);
+		Assert.assertEquals(Utils.getBufferPool().getBuffersInUse(), 0);
+		Assert.assertFalse(QueryHelper.getQueryWatcher().getRunningQueries().contains("scanning-query"));
+	}
+
+	@Test
+	public void queryTimeoutDuringSegmentScan() throws IOException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		final CountDownLatch scanning = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger advances = new AtomicInteger();
+		Query<Row> query = createGroupByQuery().withId("slow-query")
+				.withOverriddenContext(ImmutableMap.<String, Object>of("timeout", 100));
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(query, createBlockingSegment(index, scanning, release, advances));
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Uninterruptibles.awaitUninterruptibly(scanning);
+				// first row takes longer than query timeout
+				Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+				release.countDown();
+			}
+		}).start();
+		try {
+			Sequences.toList(sequence, Lists.<Row>newArrayList());
+			Assert.fail("timed out query should not return results");
+		} catch (QueryInterruptedException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		} finally {
+			release.countDown();
+			index.close();
+		}
+		Assert.assertEquals(advances.get(), 1);
+		Assert.assertEquals(Utils.getBufferPool().getBuffersInUse(), 0);
+		Assert.assertFalse(QueryHelper.getQueryWatcher().getRunningQueries().contains("slow-query"));
+	}
+
+	@Test
+	public void groupByQueryTimeout() throws IOException, InterruptedException {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		Query<Row> query = createGroupByQuery().withOverriddenContext(ImmutableMap.<String, Object>of("timeout", 1));
+		@SuppressWarnings("unchecked")
+		Sequence<Row> sequence = QueryHelper.run(query, index);
+		Thread.sleep(50);
+		try {
+			Sequences.toList(sequence, Lists.<Row>newArrayList());
+			Assert.fail("timed out query should not return results");
+		} catch (QueryInterruptedException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		index.close();
+	}
+
+	@Test
+	public void groupByQueryOnQueryService() throws Exception {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		List<Segment> segments = Arrays.<Segment>asList(new IncrementalIndexSegment(index, "live"));
+		QueryService service = QueryService.builder().withNumThreads(1).withMaxQueuedQueries(1).build();
+		try {
+			CountDownLatch blocked = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			ListenableFuture<Long> first = submitBlocking(service, createGroupByQuery(), segments, blocked, release);
+			blocked.await();
+			ListenableFuture<List<Row>> second = service.submit(createGroupByQuery(), segments);
+			Assert.assertEquals(service.getQueuedCount(), 1);
+			try {
+				service.submit(createGroupByQuery(), segments);
+				Assert.fail("query should be rejected when queue is full");
+			} catch (RejectedExecutionException e) {
+				Assert.assertEquals(service.getRejectedCount(), 1);
+			}
+			release.countDown();
+			Assert.assertEquals(first.get().longValue(), 2);
+			assertGroupByResults(second.get());
+		} finally {
+			service.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * Submits query whose worker blocks on its first row until release is counted down.
+	 */
+	private static ListenableFuture<Long> submitBlocking(QueryService service, Query<Row> query,
+			List<Segment> segments, final CountDownLatch blocked, final CountDownLatch release) {
+		return service.submit(query, segments, new QueryResults.RowCallback<Row>() {
+			@Override
+			public boolean onRow(Row row) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	@Test
+	public void queryServicePriorityOrdering() throws Exception {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		List<Segment> segments = Arrays.<Segment>asList(new IncrementalIndexSegment(index, "live"));
+		QueryService service = QueryService.builder().withNumThreads(1).build();
+		try {
+			CountDownLatch blocked = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			ListenableFuture<Long> first = submitBlocking(service, createGroupByQuery(), segments, blocked, release);
+			blocked.await();
+			final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+			List<ListenableFuture<Long>> queued = new ArrayList<ListenableFuture<Long>>();
+			for (int priority : new int[] { 0, 10, 5 }) {
+				final String label = "priority-" + priority;
+				Query<Row> query = createGroupByQuery()
+						.withOverriddenContext(ImmutableMap.<String, Object>of("priority", priority));
+				queued.add(service.submit(query, segments, new QueryResults.RowCallback<Row>() {
+					@Override
+					public boolean onRow(Row row) {
+						order.add(label);
+						return false;
+					}
+				}));
+			}
+			Assert.assertEquals(service.getQueuedCount(), 3);
+			release.countDown();
+			first.get();
+			for (ListenableFuture<Long> future : queued) {
+				future.get();
+			}
+			Assert.assertEquals(order, Arrays.asList("priority-10", "priority-5", "priority-0"));
+		} finally {
+			service.close();
+			index.close();
+		}
+	}
+
+	@Test
+	public void queryServiceLimitsConcurrentQueriesOfType() throws Exception {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		List<Segment> segments = Arrays.<Segment>asList(new IncrementalIndexSegment(index, "live"));
+		QueryService service = QueryService.builder().withNumThreads(2).withMaxConcurrentQueries("groupBy", 1)
+				.build();
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			ListenableFuture<Long> first = submitBlocking(service, createGroupByQuery(), segments, blocked, release);
+			blocked.await();
+			ListenableFuture<List<Row>> second = service.submit(createGroupByQuery(), segments);
+			// second worker skips queued GroupBy and runs TopN
+			ListenableFuture<List<Result<TopNResultValue>>> topN = service.submit(createTopNQuery(), segments);
+			Assert.assertEquals(topN.get(10, TimeUnit.SECONDS).size(), 1);
+			Assert.assertFalse(second.isDone());
+			Assert.assertEquals(service.getRunningCount("groupBy"), 1);
+			Assert.assertEquals(service.getQueuedCount(), 1);
+			release.countDown();
+			Assert.assertEquals(first.get().longValue(), 2);
+			assertGroupByResults(second.get());
+		} finally {
+			release.countDown();
+			service.close();
+			index.close();
+		}
+	}
+
+	@Test
+	public void queryServiceRejectsQueryWaitingTooLong() throws Exception {
+		IncrementalIndex<?> index = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		List<Segment> segments = Arrays.<Segment>asList(new IncrementalIndexSegment(index, "live"));
+		QueryService service = QueryService.builder().withNumThreads(1).withMaxQueueWaitMillis(50).build();
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			ListenableFuture<Long> first = submitBlocking(service, createGroupByQuery(), segments, blocked, release);
+			blocked.await();
+			// only worker stays busy : queued query is rejected without a worker polling the queue
+			ListenableFuture<List<Row>> second = service.submit(createGroupByQuery(), segments);
+			try {
+				second.get(10, TimeUnit.SECONDS);
+				Assert.fail("query should be rejected once it has waited too long in queue");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			Assert.assertEquals(service.getRejectedCount(), 1);
+			Assert.assertEquals(service.getQueuedCount(), 0);
+			release.countDown();
+			Assert.assertEquals(first.get().longValue(), 2);
+		} finally {
+			release.countDown();
+			service.close();
+			index.close();
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void queryServiceThreadsBoundedByBuffers() {
+		QueryService.builder().withNumThreads(Utils.getBufferPool().getMaxBuffers() + 1).build();
+	}
+
+	@Test
+	public void groupByQueryOnRealtimeIndex() throws Exception {
+		File baseDir = Files.createTempDir();
+		RealtimeIndex index = new RealtimeIndex(createIndexSchema(),
+				IngestionConfig.builder().withMaxRowsInMemory(2).build(), baseDir);
+		try {
+			for (InputRow row : createLoader()) {
+				index.add(row);
+			}
+			Assert.assertEquals(index.getLiveRowCount(), 1);
+			@SuppressWarnings("unchecked")
+			Sequence<Row> sequence = index.run(createGroupByQuery());
+			assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+
+			index.persist().get();
+			Assert.assertEquals(index.getLiveRowCount(), 0);
+			Assert.assertEquals(index.getNumPersisting(), 0);
+			Assert.assertEquals(index.getNumPersisted(), 2);
+			@SuppressWarnings("unchecked")
+			Sequence<Row> persisted = index.run(createGroupByQuery());
+			assertGroupByResults(Sequences.toList(persisted, Lists.<Row>newArrayList()));
+		} finally {
+			index.close();
+			FileUtils.deleteQuietly(baseDir);
+		}
+	}
+
+	@Test
+	public void realtimeIndexHandedOffWhenIdle() throws Exception {
+		File baseDir = Files.createTempDir();
+		RealtimeIndex index = new RealtimeIndex(createIndexSchema(),
+				IngestionConfig.builder().withPersistPeriodMillis(100).build(), baseDir);
+		try {
+			for (InputRow row : createLoader()) {
+				index.add(row);
+			}
+			// no more rows arrive, live index is handed off once period has elapsed
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((index.getLiveRowCount() > 0 || index.getNumPersisting() > 0)
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			Assert.assertEquals(index.getLiveRowCount(), 0);
+			Assert.assertTrue(index.getNumPersisted() > 0);
+			@SuppressWarnings("unchecked")
+			Sequence<Row> sequence = index.run(createGroupByQuery());
+			assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+		} finally {
+			index.close();
+			FileUtils.deleteQuietly(baseDir);
+		}
+	}
+
+	@Test
+	public void groupByQueryOnAppendedIndex() throws Exception {
+		File baseDir = Files.createTempDir();
+		AppendableIndex index = new AppendableIndex(createDruidSegments(), createIndexSchema(),
+				IngestionConfig.DEFAULT, baseDir);
+		try {
+			@SuppressWarnings("unchecked")
+			Sequence<Row> base = index.run(createGroupByQuery());
+			assertGroupByResults(Sequences.toList(base, Lists.<Row>newArrayList()));
+
+			// same rows appended again are rolled up with existing ones
+			index.append(createLoader()).get();
+			Assert.assertEquals(index.getVersion(), 1);
+			@SuppressWarnings("unchecked")
+			Sequence<Row> appended = index.run(createGroupByQuery());
+			List<Row> results = Sequences.toList(appended, Lists.<Row>newArrayList());
+			Assert.assertEquals(results.size(), 2);
+			Row abc = results.get(0).getDimension("URL").get(0).equals("abc") ? results.get(0) : results.get(1);
+			Assert.assertEquals(abc.getLongMetric("agg_count"), 24);
+			Assert.assertEquals(abc.getLongMetric("agg_sum"), 494);
+			Assert.assertEquals(abc.getLongMetric("agg_max"), 124);
+		} finally {
+			index.close();
+			FileUtils.deleteQuietly(baseDir);
+		}
+	}
+
+	@Test
+	public void appendableIndexKeepsExistingDirectories() throws Exception {
+		File baseDir = Files.createTempDir();
+		try {
+			// base loaded from a version left by a previous instance
+			File previousDir = new File(baseDir, "version-1");
+			IncrementalIndex<?> incIndex = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+			QueryableIndex base = IndexHelper.persist(incIndex, previousDir);
+			incIndex.close();
+			try {
+				new AppendableIndex(base, createIndexSchema(), IngestionConfig.DEFAULT, previousDir);
+				Assert.fail("directory of a persisted index should be refused");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			AppendableIndex index = new AppendableIndex(base, createIndexSchema(), IngestionConfig.DEFAULT, baseDir);
+			try {
+				index.append(createLoader()).get();
+				Assert.assertTrue(new File(baseDir, "version-2").isDirectory());
+				index.append(createLoader()).get();
+				Assert.assertEquals(index.getVersion(), 2);
+				// replaced version is deleted, base is left as it is
+				Assert.assertFalse(new File(baseDir, "version-2").exists());
+				Assert.assertTrue(new File(baseDir, "version-3").isDirectory());
+				Assert.assertTrue(new File(previousDir, "version.bin").exists());
+			} finally {
+				index.close();
+			}
+		} finally {
+			FileUtils.deleteQuietly(baseDir);
+		}
+	}
+
+	@Test
+	public void ingestionRollup() throws IOException {
+		List<DimensionSchema> dimensions = new ArrayList<DimensionSchema>();
+		for (String dim : Arrays.asList("pool", "report", "metric")) {
+			dimensions.add(new StringDimensionSchema(dim));
+		}
+		IncrementalIndexSchema schema = new IncrementalIndexSchema(0, QueryGranularity.fromString("NONE"),
+				new DimensionsSpec(dimensions, null, null),
+				new AggregatorFactory[] {new LongSumAggregatorFactory("agg_count", "count")});
+
+		IngestionStats secondStats = new IngestionStats();
+		IndexHelper.getIncrementalIndex(createLoader(), schema,
+				IngestionConfig.builder().withQueryGranularity(QueryGranularity.fromString("SECOND")).build(),
+				secondStats).close();
+		Assert.assertEquals(secondStats.getInputRows(), 3);
+		Assert.assertEquals(secondStats.getStoredRows(), 1);
+		Assert.assertEquals(secondStats.getRollupRatio(), 3.0);
+
+		// rows with identical timestamp and dimensions are still combined
+		IngestionStats millisecondStats = new IngestionStats();
+		IndexHelper.getIncrementalIndex(createLoader(), schema,
+				IngestionConfig.builder().withMillisecondGranularity(true).build(), millisecondStats).close();
+		Assert.assertEquals(millisecondStats.getStoredRows(), 2);
+
+		IngestionStats droppedStats = new IngestionStats();
+		IndexHelper.getIncrementalIndex(createLoader(), schema,
+				IngestionConfig.builder().withMinTimestamp(1235).build(), droppedStats).close();
+		Assert.assertEquals(droppedStats.getInputRows(), 3);
+		Assert.assertEquals(droppedStats.getDroppedRows(), 2);
+		Assert.assertEquals(droppedStats.getStoredRows(), 1);
+	}
+
+	@Test
+	public void groupByQueryOnHyperUniques() throws IOException {
+		// distinct URLs are pre-aggregated per colo at ingestion, URL is not stored as a dimension
+		IncrementalIndexSchema schema = new IncrementalIndexSchema(0, QueryGranularity.fromString("ALL"),
+				new DimensionsSpec(Arrays.<DimensionSchema>asList(new StringDimensionSchema("colo")), null, null),
+				new AggregatorFactory[] {new HyperUniquesAggregatorFactory("unique_urls", "URL")});
+		QueryableIndex index = IndexHelper.getQueryableIndex(createLoader(), schema);
+		GroupByQuery query = GroupByQuery.builder()
+				.setDataSource("test")
+				.setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+				.setGranularity(QueryGranularity.fromString("ALL"))
+				.addDimension("colo")
+				.addAggregator(new HyperUniquesAggregatorFactory("unique_urls", "unique_urls"))
+				.build();
+		@SuppressWarnings("unchecked")
+		List<Row> results = Sequences.toList(QueryHelper.run(query, QueryHelper.toSegments(Arrays.asList(index))),
+				Lists.<Row>newArrayList());
+		Assert.assertEquals(results.size(), 2);
+		for (Row row : results) {
+			double expected = row.getDimension("colo").get(0).equals("slc") ? 2 : 1;
+			Assert.assertEquals(row.getFloatMetric("unique_urls"), expected, 0.1);
+		}
+		index.close();
+	}
+
+	@Test
+	public void groupByQueryThroughSegmentCache() throws IOException {
+		List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+		File cacheDir = Files.createTempDir();
+		try {
+			SegmentCache cache = new SegmentCache(cacheDir, 100 * 1024 * 1024);
+			for (int i = 0; i < 2; i++) {
+				MappedCSVFileLoader loader =
+						new MappedCSVFileLoader(new File("./src/test/resources/report.csv"), columns, columns, "TS");
+				QueryableIndex index = cache.getQueryableIndex(loader, createIndexSchema());
+				@SuppressWarnings("unchecked")
+				Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+				assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+				index.close();
+			}
+			Assert.assertEquals(cache.getMissCount(), 1);
+			Assert.assertEquals(cache.getHitCount(), 1);
+			Assert.assertEquals(cacheDir.list().length, 1);
+
+			// file attributes are fingerprinted by default, content only if asked to
+			File report = new File("./src/test/resources/report.csv");
+			File copy = new File(cacheDir, "report-copy.csv");
+			FileUtils.copyFile(report, copy);
+			MappedCSVFileLoader original = new MappedCSVFileLoader(report, columns, columns, "TS");
+			MappedCSVFileLoader copied = new MappedCSVFileLoader(copy, columns, columns, "TS");
+			Assert.assertNotEquals(original.getFingerprint(), copied.getFingerprint());
+			Assert.assertEquals(original.withContentFingerprint().getFingerprint(),
+					copied.withContentFingerprint().getFingerprint());
+		} finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+
+	@Test
+	public void groupByQueryOnSegmentSnapshot() throws IOException {
+		File dir = Files.createTempDir();
+		try {
+			File segmentDir = new File(dir, "segment");
+			IncrementalIndex<?> incIndex = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+			IndexHelper.persist(incIndex, segmentDir).close();
+			incIndex.close();
+			File snapshotFile = new File(dir, "segment.snapshot");
+			SegmentSnapshot.write(segmentDir, createIndexSchema(), snapshotFile);
+
+			SegmentSnapshot snapshot = SegmentSnapshot.read(snapshotFile);
+			Assert.assertEquals(snapshot.getNumRows(), 3);
+			Assert.assertEquals(snapshot.getSchema().getMetrics().length, 4);
+			QueryableIndex index = snapshot.load(new File(dir, "index"));
+			@SuppressWarnings("unchecked")
+			Sequence<Row> sequence = QueryHelper.run(createGroupByQuery(), index);
+			assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+			index.close();
+			// directory of a previous load is replaced, any other directory is left alone
+			snapshot.load(new File(dir, "index")).close();
+			try {
+				snapshot.load(segmentDir);
+				Assert.fail("a directory not created by a snapshot should not be replaced");
+			} catch (IOException e) {
+				Assert.assertTrue(new File(segmentDir, "meta.smoosh").isFile());
+			}
+		} finally {
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	@Test
+	public void groupByQueryThroughSegmentCatalog() throws IOException {
+		File indexDir = IndexHelper.newSegmentDir();
+		IncrementalIndex<?> incIndex = IndexHelper.getIncrementalIndex(createLoader(), createIndexSchema());
+		QueryableIndex index = IndexHelper.persist(incIndex, indexDir);
+		Interval interval = index.getDataInterval();
+		index.close();
+		incIndex.close();
+		SegmentCatalog catalog = new SegmentCatalog(1);
+		catalog.register("test", interval, indexDir);
+		catalog.register("other", interval, indexDir);
+	    Assert.assertEquals(catalog.getNumOpenSegments(), 0);
+	    for (int i = 0; i < 2; i++) {
+	    	@SuppressWarnings("unchecked")
+	    	Sequence<Row> sequence = catalog.run(createGroupByQuery());
+	    	assertGroupByResults(Sequences.toList(sequence, Lists.<Row>newArrayList()));
+	    }
+	    Assert.assertEquals(catalog.getLoadCount(), 1);
+	    catalog.close();
+	}
+
 	@Test
 	public void topNQuery() throws IOException {
 		QueryableIndex index = createDruidSegments();
+	    @SuppressWarnings("unchecked")
+	    Sequence<Result> sequence = QueryHelper.run(createTopNQuery(), index);
+	    ArrayList<Result> results = Sequences.toList(sequence, Lists.<Result>newArrayList());
+	    Assert.assertEquals(results.size(), 1);
+	}
+
+	private static TopNQuery createTopNQuery() {
 		List<DimFilter> filters = new ArrayList<DimFilter>();
 		filters.add(DimFilters.dimEquals("report", "URLTransaction"));
 		filters.add(DimFilters.dimEquals("pool", "r1cart"));
@@ -165,10 +1263,7 @@ public class EmbeddedDruidTest {
 	                    
 	            )
 	            .filters(DimFilters.and(filters)).build();
-	    @SuppressWarnings("unchecked")
-	    Sequence<Result> sequence = QueryHelper.run(query, index);
-	    ArrayList<Result> results = Sequences.toList(sequence, Lists.<Result>newArrayList());
-	    Assert.assertEquals(results.size(), 1);
+	    return query;
 	}
 
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DimensionDictionaryTest {
+
+	@Test
+	public void encodeAndIntern() {
+		DimensionDictionary dictionary = new DimensionDictionary(1000);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(dictionary.getId("value-" + i), i);
+		}
+		char[] chars = "xxvalue-42yy".toCharArray();
+		Assert.assertEquals(dictionary.getId(chars, 2, 8), 42);
+		Assert.assertSame(dictionary.intern(chars, 2, 8), dictionary.get(42));
+		Assert.assertEquals(dictionary.size(), 100);
+		Assert.assertEquals(dictionary.getMissCount(), 100);
+	}
+
+	@Test
+	public void disabledOnHighCardinality() {
+		DimensionDictionary dictionary = new DimensionDictionary(10);
+		for (int i = 0; i < 10; i++) {
+			dictionary.getId("low-" + i);
+		}
+		// full dictionary is kept while values are found in it
+		for (int i = 0; i < DimensionDictionary.SATURATION_SAMPLES; i++) {
+			Assert.assertEquals(dictionary.getId("low-" + (i % 10)), i % 10);
+		}
+		Assert.assertFalse(dictionary.isDisabled());
+		for (int i = 0; i <= DimensionDictionary.SATURATION_SAMPLES; i++) {
+			Assert.assertEquals(dictionary.getId("high-" + i), DimensionDictionary.NOT_ENCODED);
+		}
+		Assert.assertTrue(dictionary.isDisabled());
+		char[] chars = "low-1".toCharArray();
+		Assert.assertEquals(dictionary.intern(chars, 0, chars.length), "low-1");
+		Assert.assertEquals(dictionary.size(), 10);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load.impl;
+
+import io.druid.data.input.InputRow;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FastCSVLoaderTest {
+
+	private static final List<String> COLUMNS = Arrays.asList("TS", "colo", "URL", "value");
+	private static final List<String> DIMENSIONS = Arrays.asList("TS", "colo", "URL");
+
+	@Test
+	public void parseQuotedAndEmptyFields() {
+		String csv = "1234,slc,\"/a,b\",1.5\r\n"
+				+ "1235,,\"say \"\"hi\"\"\",-2e2\n"
+				+ "1236,phx,\"x\\\"y\",null\n"
+				+ "bad,row\n";
+		// small buffer so that records span several reads
+		Iterator<InputRow> rows = new FastCSVLoader(new StringReader(csv), COLUMNS, DIMENSIONS, "TS", 4).iterator();
+
+		InputRow row = rows.next();
+		Assert.assertEquals(row.getTimestampFromEpoch(), 1234);
+		Assert.assertEquals(row.getDimension("colo"), Arrays.asList("slc"));
+		Assert.assertEquals(row.getDimension("URL"), Arrays.asList("/a,b"));
+		Assert.assertEquals(row.getFloatMetric("value"), 1.5f);
+
+		row = rows.next();
+		Assert.assertEquals(row.getTimestampFromEpoch(), 1235);
+		Assert.assertTrue(row.getDimension("colo").isEmpty());
+		Assert.assertEquals(row.getDimension("URL"), Arrays.asList("say \"hi\""));
+		Assert.assertEquals(row.getFloatMetric("value"), -200f);
+
+		row = rows.next();
+		Assert.assertEquals(row.getDimension("URL"), Arrays.asList("x\"y"));
+		Assert.assertNull(row.getRaw("value"));
+		Assert.assertEquals(row.getFloatMetric("value"), 0f);
+
+		Assert.assertFalse(rows.hasNext());
+	}
+
+	@Test
+	public void internDimensionValues() {
+		String csv = "1,slc,/a,1\n2,slc,/b,2\n";
+		Iterator<InputRow> rows = new FastCSVLoader(new StringReader(csv), COLUMNS, DIMENSIONS, "TS").iterator();
+		String first = rows.next().getDimension("colo").get(0);
+		String second = rows.next().getDimension("colo").get(0);
+		Assert.assertSame(first, second);
+	}
+}